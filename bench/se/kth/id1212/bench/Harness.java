@@ -0,0 +1,68 @@
+package se.kth.id1212.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * A small benchmark harness, for the hot paths of the server and the client. Each benchmark
+ * is warmed up, then measured over a few timed iterations, and the harness reports the
+ * average time and the bytes allocated by the benchmark thread per operation. The numbers
+ * are for comparing one version of a path with the next on the same machine, not absolutes.
+ * */
+public class Harness {
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 500_000_000L;
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // Results are folded into this, so the JIT can't drop the work that produced them
+    private static volatile long sink;
+
+    /**
+     * One operation of a benchmark, given the number of the operation.
+     * */
+    public interface Operation {
+        Object run(long i) throws Exception;
+    }
+
+    public static void printHeader() {
+        System.out.println(String.format(Locale.ROOT, "%-48s %14s %12s", "Benchmark", "ns/op", "B/op"));
+    }
+
+    public static void run(String name, Operation operation) throws Exception {
+        long i = 0;
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < warmupEnd) {
+            for (int j = 0; j < 1000; j++) {
+                consume(operation.run(i++));
+            }
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long ops = 0;
+        long nanos = 0;
+        long allocated = 0;
+        for (int iteration = 0; iteration < MEASURED_ITERATIONS; iteration++) {
+            long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long end = start + ITERATION_NANOS;
+            long now;
+            do {
+                for (int j = 0; j < 1000; j++) {
+                    consume(operation.run(i++));
+                }
+                ops += 1000;
+            } while ((now = System.nanoTime()) < end);
+            nanos += now - start;
+            allocated += THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        }
+        System.out.println(String.format(Locale.ROOT, "%-48s %14.1f %12.1f",
+                name, (double) nanos / ops, (double) allocated / ops));
+    }
+
+    public static void consume(Object result) {
+        if (result != null) {
+            sink += System.identityHashCode(result);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package se.kth.id1212.bench;
+
+import se.kth.id1212.client.net.MessageProcessorBenchmark;
+import se.kth.id1212.server.model.GameBenchmark;
+import se.kth.id1212.server.net.NetBenchmark;
+
+/**
+ * Runs every benchmark. The benchmarks live in the packages they measure, so they can reach
+ * package private code, and are compiled together with the sources:
+ *     javac -d out $(find src bench -name '*.java')
+ *     java -cp out se.kth.id1212.bench.RunAll
+ * */
+public class RunAll {
+
+    public static void main(String[] args) throws Exception {
+        Harness.printHeader();
+        GameBenchmark.run();
+        NetBenchmark.run();
+        MessageProcessorBenchmark.run();
+    }
+}
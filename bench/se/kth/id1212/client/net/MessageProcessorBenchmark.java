@@ -0,0 +1,21 @@
+package se.kth.id1212.client.net;
+
+import se.kth.id1212.bench.Harness;
+
+/**
+ * Rendering the messages the client receives most.
+ * */
+public class MessageProcessorBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Harness.printHeader();
+        run();
+    }
+
+    public static void run() throws Exception {
+        MessageProcessor processor = new MessageProcessor();
+        Harness.run("MessageProcessor.processMsg GUESS", i -> processor.processMsg("GUESS&PLAYER&E"));
+        Harness.run("MessageProcessor.processMsg STATE", i ->
+                processor.processMsg("STATE&_ A _ _ _ A _&5&false&A, E, Z&7"));
+    }
+}
@@ -0,0 +1,57 @@
+package se.kth.id1212.server.model;
+
+import se.kth.id1212.bench.Harness;
+
+/**
+ * Guessing and snapshotting the game, with short, medium and long words.
+ * */
+public class GameBenchmark {
+    public static final String[] WORDS = {"KIWI", "HANGMAN", "INTERNATIONALIZATION"};
+    private static final char[] GUESSES = "ETAOINSHRDLUCMWFGYPBVKJXQZ".toCharArray();
+    private static final String[] LETTERS = new String[GUESSES.length];
+
+    static {
+        for (int i = 0; i < GUESSES.length; i++) {
+            LETTERS[i] = String.valueOf(GUESSES[i]);
+        }
+    }
+
+    /**
+     * @return a running game of the given word, without a dictionary.
+     * */
+    public static Game started(String word) {
+        Game game = new Game();
+        game.startWith(word);
+        return game;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Harness.printHeader();
+        run();
+    }
+
+    public static void run() throws Exception {
+        for (String word : WORDS) {
+            Game game = started(word);
+            Harness.run("Game.makeGuess letter (" + word.length() + " letters)", i -> {
+                DTO dto = game.makeGuess(LETTERS[(int) (i % LETTERS.length)]);
+                if (dto.gameWon() || dto.getRemainingAttempts() == 0) {
+                    game.startWith(word);
+                }
+                return dto;
+            });
+        }
+        for (String word : WORDS) {
+            Game game = started(word);
+            Harness.run("Game.startWith + makeGuess word (" + word.length() + " letters)", i -> {
+                game.startWith(word);
+                return game.makeGuess(word);
+            });
+        }
+        for (String word : WORDS) {
+            Game game = started(word);
+            game.makeGuess("E");
+            Harness.run("Game.getDTO (" + word.length() + " letters)", i -> game.getDTO());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package se.kth.id1212.server.net;
+
+import common.BinaryProtocol;
+import common.Command;
+import common.WireFormat;
+import se.kth.id1212.bench.Harness;
+import se.kth.id1212.server.model.DTO;
+import se.kth.id1212.server.model.Game;
+import se.kth.id1212.server.model.GameBenchmark;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding STATE, decoding client frames and broadcasting to the members of a room.
+ * */
+public class NetBenchmark {
+    private static final int[] RECIPIENTS = {10, 1_000, 10_000};
+
+    public static void main(String[] args) throws Exception {
+        Harness.printHeader();
+        run();
+    }
+
+    public static void run() throws Exception {
+        for (String word : GameBenchmark.WORDS) {
+            Game game = GameBenchmark.started(word);
+            DTO dto = game.makeGuess("E");
+            for (WireFormat format : WireFormat.values()) {
+                Harness.run("Packet STATE encode " + format + " (" + word.length() + " letters)",
+                        i -> Packet.state(dto).encode(format));
+            }
+        }
+
+        ByteBuffer textFrame = ByteBuffer.wrap("7#GUESS a".getBytes(StandardCharsets.UTF_8));
+        Harness.run("FrameDecoder decode TEXT GUESS", decodeEach(textFrame, false));
+        ByteBuffer binaryFrame = BinaryProtocol.frame(Command.GUESS, "a");
+        Harness.run("FrameDecoder decode BINARY GUESS", decodeEach(binaryFrame, true));
+
+        for (int recipients : RECIPIENTS) {
+            Server server = new Server();
+            Server.ClientInterface[] clients = new Server.ClientInterface[recipients];
+            for (int i = 0; i < recipients; i++) {
+                clients[i] = server.new ClientInterface(new NullSocketChannel());
+            }
+            Room lobby = server.lobby();
+            Harness.run("broadcast + transmit to " + recipients + " clients", i -> {
+                Packet packet = Packet.event(Command.GUESS, "PLAYER", "E");
+                server.broadcast(lobby, packet);
+                for (Server.ClientInterface client : clients) {
+                    client.transmitAll();
+                }
+                return packet;
+            });
+        }
+    }
+
+    /**
+     * @return an operation that reads the frame from a channel and decodes it, every time.
+     * */
+    private static Harness.Operation decodeEach(ByteBuffer frame, boolean binary) throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer source = ByteBuffer.allocate(frame.remaining() + BinaryProtocol.HANDSHAKE_LENGTH);
+        ReadableByteChannel channel = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                int read = source.remaining();
+                dst.put(source);
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        if (binary) {
+            source.put(BinaryProtocol.handshake()).flip();
+            decoder.readFrom(channel);
+            decoder.decode(request -> { });
+        }
+        Request[] last = new Request[1];
+        return i -> {
+            source.clear();
+            source.put(frame.duplicate()).flip();
+            decoder.readFrom(channel);
+            decoder.decode(request -> last[0] = request);
+            return last[0];
+        };
+    }
+}
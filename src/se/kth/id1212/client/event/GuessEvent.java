@@ -0,0 +1,19 @@
+package se.kth.id1212.client.event;
+
+import common.Command;
+
+public class GuessEvent extends PlayerEvent {
+    private final String guess;
+
+    public GuessEvent(String player, String guess) {
+        super(Command.GUESS, player);
+        this.guess = guess;
+    }
+
+    /**
+     * @return the letter or the whole word that was guessed.
+     * */
+    public String getGuess() {
+        return guess;
+    }
+}
@@ -0,0 +1,16 @@
+package se.kth.id1212.client.event;
+
+import common.Command;
+
+public class JoinEvent extends PlayerEvent {
+    private final String room;
+
+    public JoinEvent(String player, String room) {
+        super(Command.JOIN, player);
+        this.room = room;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+}
@@ -0,0 +1,40 @@
+package se.kth.id1212.client.event;
+
+import common.Command;
+
+import java.util.Collections;
+import java.util.List;
+
+public class LeaderboardEvent extends ServerEvent {
+    private final List<Entry> entries;
+
+    public LeaderboardEvent(List<Entry> entries) {
+        super(Command.LEADERBOARD);
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return the best players, best first.
+     * */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public static class Entry {
+        private final String player;
+        private final int score;
+
+        public Entry(String player, int score) {
+            this.player = player;
+            this.score = score;
+        }
+
+        public String getPlayer() {
+            return player;
+        }
+
+        public int getScore() {
+            return score;
+        }
+    }
+}
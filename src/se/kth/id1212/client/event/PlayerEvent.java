@@ -0,0 +1,19 @@
+package se.kth.id1212.client.event;
+
+import common.Command;
+
+/**
+ * A player did something to the room, START or DISCONNECT.
+ * */
+public class PlayerEvent extends ServerEvent {
+    private final String player;
+
+    public PlayerEvent(Command type, String player) {
+        super(type);
+        this.player = player;
+    }
+
+    public String getPlayer() {
+        return player;
+    }
+}
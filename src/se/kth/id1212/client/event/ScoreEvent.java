@@ -0,0 +1,16 @@
+package se.kth.id1212.client.event;
+
+import common.Command;
+
+public class ScoreEvent extends ServerEvent {
+    private final int score;
+
+    public ScoreEvent(int score) {
+        super(Command.SCORE);
+        this.score = score;
+    }
+
+    public int getScore() {
+        return score;
+    }
+}
@@ -0,0 +1,23 @@
+package se.kth.id1212.client.event;
+
+import common.Command;
+
+/**
+ * Something the server told the client, parsed once from the wire. Messages that carry
+ * nothing but their command, like RUNNING and NOT_RUNNING, are plain ServerEvents, the
+ * others have a subclass of their own.
+ * */
+public class ServerEvent {
+    private final Command type;
+
+    public ServerEvent(Command type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the command of the message, or null if the server sent an unknown one.
+     * */
+    public Command getType() {
+        return type;
+    }
+}
@@ -0,0 +1,93 @@
+package se.kth.id1212.client.event;
+
+import common.BinaryProtocol;
+import common.Command;
+
+/**
+ * The state of the game in the room, after a START or a GUESS.
+ * */
+public class StateEvent extends ServerEvent {
+    private static final int NO_ALPHABET_LETTERS = 26;
+    private final char[] letters;
+    private final int attemptsLeft;
+    private final boolean won;
+    private final int guessedMask;
+
+    /**
+     * @param letters the word, with BinaryProtocol.UNKNOWN_LETTER where it isn't revealed.
+     * @param guessedMask bit n is set if letter 'A' + n has been guessed.
+     * */
+    public StateEvent(char[] letters, int attemptsLeft, boolean won, int guessedMask) {
+        super(Command.STATE);
+        this.letters = letters;
+        this.attemptsLeft = attemptsLeft;
+        this.won = won;
+        this.guessedMask = guessedMask;
+    }
+
+    public int getNoLetters() {
+        return letters.length;
+    }
+
+    public boolean isRevealed(int position) {
+        return letters[position] != BinaryProtocol.UNKNOWN_LETTER;
+    }
+
+    /**
+     * @return the letter, or BinaryProtocol.UNKNOWN_LETTER if it isn't revealed.
+     * */
+    public char getLetter(int position) {
+        return letters[position];
+    }
+
+    public int getAttemptsLeft() {
+        return attemptsLeft;
+    }
+
+    public boolean isWon() {
+        return won;
+    }
+
+    public boolean isLost() {
+        return !won && attemptsLeft < 1;
+    }
+
+    public boolean isGuessed(char letter) {
+        int index = Character.toUpperCase(letter) - 'A';
+        return index >= 0 && index < NO_ALPHABET_LETTERS && (guessedMask & (1 << index)) != 0;
+    }
+
+    public int getGuessedMask() {
+        return guessedMask;
+    }
+
+    /**
+     * @return the word as it is shown, like "_ A _".
+     * */
+    public String getPattern() {
+        StringBuilder pattern = new StringBuilder(2 * letters.length);
+        for (int i = 0; i < letters.length; i++) {
+            if (i > 0) {
+                pattern.append(' ');
+            }
+            pattern.append(letters[i]);
+        }
+        return pattern.toString();
+    }
+
+    /**
+     * @return the guessed letters in alphabetical order, like "A, E".
+     * */
+    public String getGuessedLetters() {
+        StringBuilder guessed = new StringBuilder();
+        for (int letter = 0; letter < NO_ALPHABET_LETTERS; letter++) {
+            if ((guessedMask & (1 << letter)) != 0) {
+                if (guessed.length() > 0) {
+                    guessed.append(", ");
+                }
+                guessed.append((char) ('A' + letter));
+            }
+        }
+        return guessed.toString();
+    }
+}
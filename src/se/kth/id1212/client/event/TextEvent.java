@@ -0,0 +1,19 @@
+package se.kth.id1212.client.event;
+
+import common.Command;
+
+/**
+ * A message that is only text to show, such as RULES, STATS and ERROR.
+ * */
+public class TextEvent extends ServerEvent {
+    private final String text;
+
+    public TextEvent(Command type, String text) {
+        super(type);
+        this.text = text;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,22 @@
+package se.kth.id1212.client.event;
+
+import common.Command;
+
+public class UserEvent extends ServerEvent {
+    private final String oldName;
+    private final String newName;
+
+    public UserEvent(String oldName, String newName) {
+        super(Command.USER);
+        this.oldName = oldName;
+        this.newName = newName;
+    }
+
+    public String getOldName() {
+        return oldName;
+    }
+
+    public String getNewName() {
+        return newName;
+    }
+}
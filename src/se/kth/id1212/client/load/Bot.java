@@ -0,0 +1,146 @@
+package se.kth.id1212.client.load;
+
+import common.Command;
+import se.kth.id1212.client.net.Broadcast;
+import se.kth.id1212.client.net.ServerConnection;
+import se.kth.id1212.client.net.ServerMessage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A simulated player. It names itself, joins its room and starts a game, then guesses
+ * letters on a fixed schedule, and restarts the game once it is over. The schedule is
+ * kept whether or not earlier guesses are answered, and the latency of a guess runs from
+ * when it was due to its own tagged reply. So a slow server shows as latency instead of
+ * as bots that quietly guess less often.
+ * */
+class Bot implements Broadcast {
+    private static final int NO_LETTERS = 26;
+    private final LoadGenerator load;
+    private final ServerConnection connection;
+    private final String name;
+    private final String room;
+    private final char[] letters = new char[NO_LETTERS];
+    private int nextLetter;
+    private boolean connected;
+    private boolean restarting;
+    // When the next guess is due
+    private long nextGuessNanos;
+    private long[] latencies = new long[64];
+    private int noLatencies;
+
+    Bot(LoadGenerator load, ServerConnection connection, String name, String room) {
+        this.load = load;
+        this.connection = connection;
+        this.name = name;
+        this.room = room;
+        for (int i = 0; i < NO_LETTERS; i++) {
+            letters[i] = (char) ('A' + i);
+        }
+    }
+
+    void connect() {
+        connection.connect(this);
+    }
+
+    @Override
+    public void relayFromServer(String trans) {
+        // Only the kind of message matters
+    }
+
+    /**
+     * Acts on the type of each message only, so nothing is ever rendered. The room's
+     * events are ignored, a bot only follows the replies to its own requests.
+     * */
+    @Override
+    public synchronized void relayBatch(List<ServerMessage> batch) {
+        for (ServerMessage msg : batch) {
+            if (msg.getType() == Command.CONNECT && !connected) {
+                connected = true;
+                connection.username(name);
+                connection.joinRoom(room);
+                restartGame();
+                nextGuessNanos = System.nanoTime();
+                guess();
+            }
+        }
+    }
+
+    private synchronized void restartGame() {
+        if (restarting) {
+            return;
+        }
+        restarting = true;
+        shuffleLetters();
+        connection.startGameAsync().whenComplete((started, failure) -> gameRestarted());
+    }
+
+    private synchronized void gameRestarted() {
+        restarting = false;
+    }
+
+    /**
+     * Sends the guess that is due and schedules the next one, without waiting for a reply.
+     * */
+    private synchronized void guess() {
+        if (!load.isRunning() || !connected) {
+            return;
+        }
+        if (nextLetter == NO_LETTERS) {
+            // Someone else in the room finished the word for us
+            shuffleLetters();
+        }
+        long due = nextGuessNanos;
+        nextGuessNanos += load.getGuessIntervalNanos();
+        load.schedule(this::guess, Math.max(0, nextGuessNanos - System.nanoTime()));
+        connection.guessAsync(String.valueOf(letters[nextLetter++])).whenComplete((reply, failure) -> {
+            if (failure != null) {
+                return;
+            }
+            if (reply.getType() == Command.STATE) {
+                if (due - load.getMeasureFromNanos() >= 0) {
+                    record(System.nanoTime() - due);
+                }
+            } else if (reply.getType() == Command.NOT_RUNNING) {
+                // The game ended, the guess that found out is not counted
+                restartGame();
+            }
+        });
+    }
+
+    private void shuffleLetters() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = NO_LETTERS - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            char swap = letters[i];
+            letters[i] = letters[j];
+            letters[j] = swap;
+        }
+        nextLetter = 0;
+    }
+
+    private synchronized void record(long latencyNanos) {
+        if (noLatencies == latencies.length) {
+            latencies = Arrays.copyOf(latencies, noLatencies * 2);
+        }
+        latencies[noLatencies++] = latencyNanos;
+    }
+
+    synchronized long[] getLatencies() {
+        return Arrays.copyOf(latencies, noLatencies);
+    }
+
+    synchronized void disconnect() {
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        try {
+            connection.disconnect();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
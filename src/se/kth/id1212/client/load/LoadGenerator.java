@@ -0,0 +1,167 @@
+package se.kth.id1212.client.load;
+
+import common.WireFormat;
+import se.kth.id1212.client.net.ServerConnection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays many simulated players against a server from one JVM, through the same
+ * ServerConnection and MessageProcessor as the console client, and reports the guess
+ * throughput and the latency from a guess to its STATE.
+ * */
+public class LoadGenerator {
+    private final ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+    private final List<Bot> bots = new ArrayList<>();
+    private String host = "localhost";
+    private int port = 9091;
+    private WireFormat format = WireFormat.BINARY;
+    private int noBots = 1000;
+    private int roomSize = 1;
+    private int sessionsPerConnection = 1;
+    private double guessesPerSecond = 1;
+    private int rampUpSeconds = 5;
+    private int seconds = 30;
+    private long guessIntervalNanos;
+    private volatile long measureFromNanos;
+    private volatile boolean running;
+
+    boolean isRunning() {
+        return running;
+    }
+
+    long getGuessIntervalNanos() {
+        return guessIntervalNanos;
+    }
+
+    /**
+     * Guesses sent before this, while players are still connecting, are not counted.
+     * */
+    long getMeasureFromNanos() {
+        return measureFromNanos;
+    }
+
+    void schedule(Runnable task, long delayNanos) {
+        try {
+            scheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    private void run() throws InterruptedException {
+        guessIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / guessesPerSecond);
+        running = true;
+        long start = System.nanoTime();
+        measureFromNanos = start + TimeUnit.SECONDS.toNanos(rampUpSeconds);
+        System.out.println("Connecting " + noBots + " players to " + host + ":" + port + " over " + rampUpSeconds + " s");
+        ServerConnection shared = null;
+        for (int i = 0; i < noBots; i++) {
+            // The first player of a group owns the socket, the others are sessions on it
+            shared = i % sessionsPerConnection == 0 ? new ServerConnection(format, host, port) : shared.openSession();
+            Bot bot = new Bot(this, shared, "bot-" + i, "load-" + i / roomSize);
+            bots.add(bot);
+            bot.connect();
+            // Spreads the connects over the ramp up, so the accept backlog keeps up
+            long connectAt = start + TimeUnit.SECONDS.toNanos(rampUpSeconds) * (i + 1) / noBots;
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, connectAt - System.nanoTime()));
+        }
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, measureFromNanos - System.nanoTime()));
+        System.out.println("Measuring for " + seconds + " s");
+        TimeUnit.SECONDS.sleep(seconds);
+        running = false;
+        long measuredNanos = System.nanoTime() - measureFromNanos;
+        scheduler.shutdownNow();
+        report(measuredNanos);
+        // Sessions before the connection they were opened on
+        for (int i = bots.size() - 1; i >= 0; i--) {
+            bots.get(i).disconnect();
+        }
+    }
+
+    private void report(long measuredNanos) {
+        int total = 0;
+        List<long[]> perBot = new ArrayList<>(bots.size());
+        for (Bot bot : bots) {
+            long[] latencies = bot.getLatencies();
+            perBot.add(latencies);
+            total += latencies.length;
+        }
+        long[] all = new long[total];
+        int at = 0;
+        for (long[] latencies : perBot) {
+            System.arraycopy(latencies, 0, all, at, latencies.length);
+            at += latencies.length;
+        }
+        Arrays.sort(all);
+        System.out.println("Guesses answered: " + total);
+        System.out.printf("Throughput: %.1f guesses/s%n", total / (measuredNanos / 1e9));
+        if (total > 0) {
+            System.out.printf("Latency p50: %.3f ms, p99: %.3f ms, p999: %.3f ms, max: %.3f ms%n",
+                    percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999), all[total - 1] / 1e6);
+        }
+    }
+
+    /**
+     * @return the latency in milliseconds that the given fraction of the sorted samples stay within.
+     * */
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * Usage: LoadGenerator [--host HOST] [--port PORT] [--format TEXT|BINARY] [--bots N]
+     *                      [--room-size N] [--rate GUESSES_PER_SECOND] [--ramp-up SECONDS]
+     *                      [--seconds SECONDS] [--sessions-per-connection N]
+     * Every player guesses at the given rate, on schedule whether or not its earlier
+     * guesses are answered, and a guess is measured from when it was due to its own reply.
+     * Players share a room in groups of room size, one per room by default. With more than one session per
+     * connection, that many players share a socket, as behind a gateway.
+     * */
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator load = new LoadGenerator();
+        for (int i = 0; i < args.length - 1; i += 2) {
+            switch (args[i]) {
+                case "--host":
+                    load.host = args[i + 1];
+                    break;
+                case "--port":
+                    load.port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--format":
+                    load.format = WireFormat.valueOf(args[i + 1].toUpperCase());
+                    break;
+                case "--bots":
+                    load.noBots = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "--room-size":
+                    load.roomSize = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "--rate":
+                    load.guessesPerSecond = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--ramp-up":
+                    load.rampUpSeconds = Math.max(0, Integer.parseInt(args[i + 1]));
+                    break;
+                case "--seconds":
+                    load.seconds = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "--sessions-per-connection":
+                    load.sessionsPerConnection = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+            }
+        }
+        load.run();
+        System.exit(0);
+    }
+}
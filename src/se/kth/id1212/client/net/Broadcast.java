@@ -1,7 +1,32 @@
 package se.kth.id1212.client.net;
 
+import common.Command;
+
+import java.util.List;
+
 public interface Broadcast {
 
     public void relayFromServer(String trans);
 
+    /**
+     * Called for every message instead of relayFromServer(String), for listeners that act on
+     * the kind of message and not only show it.
+     * @param type the command of the message, or null if the server sent an unknown one.
+     * */
+    default void relayFromServer(Command type, String trans) {
+        relayFromServer(trans);
+    }
+
+    /**
+     * Called with everything received since the last batch, in order. The batches of one
+     * connection never overlap, and the list is only valid during the call.
+     * Listeners that show messages may skip the ones a later message in the batch makes
+     * stale, like an older STATE.
+     * */
+    default void relayBatch(List<ServerMessage> batch) {
+        for (ServerMessage msg : batch) {
+            relayFromServer(msg.getType(), msg.getRendered());
+        }
+    }
+
 }
@@ -0,0 +1,86 @@
+package se.kth.id1212.client.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hands the messages of one connection to a receiver in batches, in the order they were
+ * posted. It is drained by at most one executor thread at a time, so batches never overlap
+ * and a receiver sees everything that piled up since the last batch at once.
+ * */
+class Dispatcher<T> implements Runnable {
+    private static final int MAX_BATCH = 256;
+    private final Queue<T> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicInteger backlog;
+    private final Executor executor;
+    private final Consumer<List<T>> receiver;
+    // Only touched by the thread draining the dispatcher
+    private final List<T> batch = new ArrayList<>();
+    private final List<T> readOnlyBatch = Collections.unmodifiableList(batch);
+
+    Dispatcher(Executor executor, Consumer<List<T>> receiver) {
+        this(executor, receiver, new AtomicInteger());
+    }
+
+    /**
+     * @param backlog counts what is posted but not yet handed over, and may be shared by
+     *                dispatchers whose backlog is limited together.
+     * */
+    Dispatcher(Executor executor, Consumer<List<T>> receiver, AtomicInteger backlog) {
+        this.executor = executor;
+        this.receiver = receiver;
+        this.backlog = backlog;
+    }
+
+    void post(T message) {
+        backlog.incrementAndGet();
+        messages.add(message);
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * @return the number of messages posted but not yet handed to a receiver, of all the
+     * dispatchers that share the backlog.
+     * */
+    int getBacklog() {
+        return backlog.get();
+    }
+
+    AtomicInteger getBacklogCounter() {
+        return backlog;
+    }
+
+    /**
+     * Drains at most MAX_BATCH messages into one batch, and reschedules itself if more
+     * remain, so one busy connection can't starve the others sharing the executor.
+     * */
+    @Override
+    public void run() {
+        try {
+            T message;
+            while (batch.size() < MAX_BATCH && (message = messages.poll()) != null) {
+                batch.add(message);
+                backlog.decrementAndGet();
+            }
+            if (!batch.isEmpty()) {
+                receiver.accept(readOnlyBatch);
+            }
+        } finally {
+            batch.clear();
+            scheduled.set(false);
+            if (!messages.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+    }
+}
@@ -1,48 +1,157 @@
 package se.kth.id1212.client.net;
 
+import common.BinaryProtocol;
+import common.Command;
+import se.kth.id1212.client.event.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 import static common.Constants.DATA_DELIMITER;
 import static common.Constants.NEW_LINE;
-import static common.Constants.TYPE_INDEX;
 
+/**
+ * Parses the messages from the server into events, and renders the events for the user.
+ * */
 public class MessageProcessor {
+    private static final char DATA_SEPARATOR = DATA_DELIMITER.charAt(0);
+    private static final Command[] COMMANDS = Command.values();
 
+    /**
+     * @return the command of a message in the text protocol, or null if it is unknown.
+     * */
+    public Command typeOf(String data) {
+        for (Command cmd : COMMANDS) {
+            String name = cmd.name();
+            if (data.startsWith(name) && (data.length() == name.length() || data.charAt(name.length()) == DATA_SEPARATOR)) {
+                return cmd;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Renders a message in the text protocol.
+     * */
     public String processMsg(String data) {
-        String[] splitData = data.split(DATA_DELIMITER);
+        return render(parseMsg(data));
+    }
 
-        String returnValue;
-        switch (common.Command.valueOf(splitData[TYPE_INDEX])) {
+    /**
+     * Renders a frame in the binary protocol, starting at the opcode.
+     * */
+    public String processFrame(ByteBuffer frame) throws IOException {
+        return render(parseFrame(frame));
+    }
+
+    /**
+     * Parses a message in the text protocol, the fields are found without regular expressions.
+     * */
+    public ServerEvent parseMsg(String data) {
+        Command cmd = typeOf(data);
+        if (cmd == null) {
+            return new ServerEvent(null);
+        }
+        List<String> fields = new ArrayList<>(5);
+        int start = cmd.name().length() + 1;
+        while (start <= data.length()) {
+            int end = data.indexOf(DATA_SEPARATOR, start);
+            if (end < 0) {
+                end = data.length();
+            }
+            fields.add(data.substring(start, end));
+            start = end + 1;
+        }
+        if (cmd == Command.STATE) {
+            return textState(fields);
+        }
+        return event(cmd, fields);
+    }
+
+    /**
+     * Parses a frame in the binary protocol, starting at the opcode.
+     * */
+    public ServerEvent parseFrame(ByteBuffer frame) throws IOException {
+        Command cmd = Command.fromOpcode(frame.get());
+        if (cmd == null) {
+            return new ServerEvent(null);
+        }
+        if (cmd == Command.STATE) {
+            return binaryState(frame);
+        }
+        List<String> fields = new ArrayList<>(3);
+        while (frame.hasRemaining()) {
+            fields.add(BinaryProtocol.getString(frame));
+        }
+        return event(cmd, fields);
+    }
+
+    private ServerEvent event(Command cmd, List<String> fields) {
+        switch (cmd) {
             case GUESS:
-                returnValue = splitData[1] + " guessed: " + splitData[2];
-                break;
+                return new GuessEvent(fields.get(0), fields.get(1));
+            case USER:
+                return new UserEvent(fields.get(0), fields.get(1));
+            case JOIN:
+                return new JoinEvent(fields.get(0), fields.get(1));
+            case START:
+            case DISCONNECT:
+                return new PlayerEvent(cmd, fields.get(0));
+            case SCORE:
+                return new ScoreEvent(Integer.parseInt(fields.get(0)));
+            case LEADERBOARD:
+                List<LeaderboardEvent.Entry> entries = new ArrayList<>(fields.size() / 2);
+                for (int i = 0; i + 1 < fields.size(); i += 2) {
+                    entries.add(new LeaderboardEvent.Entry(fields.get(i), Integer.parseInt(fields.get(i + 1))));
+                }
+                return new LeaderboardEvent(entries);
+            case CONNECT:
+                return new TextEvent(cmd, fields.isEmpty() ? "Connected to the server!" : fields.get(0));
+            case RULES:
+            case ERROR:
+                return new TextEvent(cmd, fields.get(0));
+            case STATS:
+                return new TextEvent(cmd, String.join(NEW_LINE, fields));
+            default:
+                return new ServerEvent(cmd);
+        }
+    }
+
+    /**
+     * Renders an event for the user.
+     * */
+    public String render(ServerEvent event) {
+        Command cmd = event.getType();
+        if (cmd == null) {
+            return "ERROR";
+        }
+        String returnValue;
+        switch (cmd) {
             case STATE:
-                String state = splitData[1];
-                String outlook;
-                int attemptsLeft = Integer.parseInt(splitData[2]);
-                boolean gameWon = Boolean.parseBoolean(splitData[3]);
-
-                if (attemptsLeft < 1 & !gameWon)
-                    outlook = "Game over, better luck next time..."+ NEW_LINE;
-                else if (gameWon)
-                    outlook = "Good job, you won!"+ NEW_LINE;
-                else
-                    outlook = attemptsLeft + " attempts to go."+ NEW_LINE;
-
-                returnValue = splitData[5] + " letter word: " + state +
-                        NEW_LINE + outlook +
-                        NEW_LINE + "Previously guessed:" +
-                        NEW_LINE + splitData[4];
+                returnValue = state((StateEvent) event);
+                break;
+            case GUESS:
+                GuessEvent guess = (GuessEvent) event;
+                returnValue = guess.getPlayer() + " guessed: " + guess.getGuess();
                 break;
             case USER:
-                returnValue = splitData[1] + " changed name to " + splitData[2] + NEW_LINE;
+                UserEvent user = (UserEvent) event;
+                returnValue = user.getOldName() + " changed name to " + user.getNewName() + NEW_LINE;
+                break;
+            case JOIN:
+                JoinEvent join = (JoinEvent) event;
+                returnValue = join.getPlayer() + " joined room " + join.getRoom() + NEW_LINE;
                 break;
             case START:
-                returnValue = splitData[1] + " started a new game!" + NEW_LINE;
+                returnValue = ((PlayerEvent) event).getPlayer() + " started a new game!" + NEW_LINE;
                 break;
             case DISCONNECT:
-                returnValue = splitData[1] + " left the game :("+ NEW_LINE;
+                returnValue = ((PlayerEvent) event).getPlayer() + " left the game :("+ NEW_LINE;
                 break;
             case SCORE:
-                returnValue = "Your score is " + splitData[1];
+                returnValue = "Your score is " + ((ScoreEvent) event).getScore();
                 break;
             case RUNNING:
                 returnValue = "A game is already running, use the GUESS command to play."+ NEW_LINE;
@@ -50,12 +159,87 @@ public class MessageProcessor {
             case NOT_RUNNING:
                 returnValue = "The game hasn't been started, use the START command to play."+ NEW_LINE;
                 break;
+            case CONNECT:
             case RULES:
-                returnValue = splitData[1];
+                returnValue = ((TextEvent) event).getText();
+                break;
+            case LEADERBOARD:
+                returnValue = leaderboard((LeaderboardEvent) event);
+                break;
+            case ERROR:
+                returnValue = "Error: " + ((TextEvent) event).getText();
+                break;
+            case STATS:
+                returnValue = ((TextEvent) event).getText() + NEW_LINE;
                 break;
             default:
                 returnValue = "ERROR";
         }
         return returnValue;
     }
+
+    private String leaderboard(LeaderboardEvent event) {
+        if (event.getEntries().isEmpty()) {
+            return "Nobody has a score yet." + NEW_LINE;
+        }
+        StringBuilder board = new StringBuilder("Leaderboard:");
+        int place = 1;
+        for (LeaderboardEvent.Entry entry : event.getEntries()) {
+            board.append(NEW_LINE).append(place++).append(". ").append(entry.getPlayer())
+                    .append(" ").append(entry.getScore());
+        }
+        return board.append(NEW_LINE).toString();
+    }
+
+    /**
+     * @param fields the word like "_ A _", the remaining attempts, whether it is won, the
+     *               guessed letters like "A, E" and the number of letters.
+     * */
+    private StateEvent textState(List<String> fields) {
+        String pattern = fields.get(0);
+        char[] letters = new char[Integer.parseInt(fields.get(4))];
+        for (int i = 0; i < letters.length; i++) {
+            letters[i] = pattern.charAt(2 * i);
+        }
+        int guessedMask = 0;
+        String guessed = fields.get(3);
+        for (int i = 0; i < guessed.length(); i++) {
+            char c = guessed.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                guessedMask |= 1 << (c - 'A');
+            }
+        }
+        return new StateEvent(letters, Integer.parseInt(fields.get(1)), Boolean.parseBoolean(fields.get(2)),
+                guessedMask);
+    }
+
+    private StateEvent binaryState(ByteBuffer frame) throws IOException {
+        int noLetters = BinaryProtocol.getVarint(frame);
+        boolean gameWon = frame.get() == 1;
+        int attemptsLeft = BinaryProtocol.getVarint(frame);
+        byte[] revealedMask = new byte[(noLetters + 7) / 8];
+        frame.get(revealedMask);
+
+        char[] letters = new char[noLetters];
+        for (int i = 0; i < noLetters; i++) {
+            boolean revealed = (revealedMask[i >> 3] & (1 << (i & 7))) != 0;
+            letters[i] = revealed ? (char) BinaryProtocol.getVarint(frame) : BinaryProtocol.UNKNOWN_LETTER;
+        }
+        return new StateEvent(letters, attemptsLeft, gameWon, frame.getInt());
+    }
+
+    private String state(StateEvent state) {
+        String outlook;
+        if (state.isLost())
+            outlook = "Game over, better luck next time..."+ NEW_LINE;
+        else if (state.isWon())
+            outlook = "Good job, you won!"+ NEW_LINE;
+        else
+            outlook = state.getAttemptsLeft() + " attempts to go."+ NEW_LINE;
+
+        return state.getNoLetters() + " letter word: " + state.getPattern() +
+                NEW_LINE + outlook +
+                NEW_LINE + "Previously guessed:" +
+                NEW_LINE + state.getGuessedLetters();
+    }
 }
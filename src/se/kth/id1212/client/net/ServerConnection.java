@@ -1,36 +1,145 @@
 package se.kth.id1212.client.net;
 
+import common.BinaryProtocol;
+import common.Command;
+import common.WireFormat;
+import se.kth.id1212.client.event.ServerEvent;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.Executor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Flow;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static common.Constants.*;
 
+/**
+ * The connection to the server. Requests are either sent and forgotten, with everything the
+ * server sends relayed to the broadcasters, or sent with request(), which returns the reply
+ * to that very request. Any number of requests can be in flight on the connection, the
+ * server tags each reply with the sequence number of its request. Programs that act on what
+ * happens in the room subscribe to events() instead of parsing what the broadcasters show.
+ *
+ * A gateway that plays for many users can open more sessions on one socket with
+ * openSession(). Each session is a player of its own, and is used like a connection.
+ * */
 public class ServerConnection implements Runnable {
+    private static final int EVENT_BUFFER = 256;
+    // Reading pauses while this many messages wait for the listeners, and resumes at the other
+    private static final int MAX_UNDELIVERED = 1024;
+    private static final int RESUME_UNDELIVERED = 256;
+    private static final ServerMessage END_OF_MESSAGES = ServerMessage.notice(null, null, null);
     private InetSocketAddress serverAddress;
     private SocketChannel socketChannel;
-    private Selector selector;
-    private final ByteBuffer packetsToReceive = ByteBuffer.allocateDirect(1024);
+    private volatile Selector selector;
+    private ByteBuffer packetsToReceive = ByteBuffer.allocateDirect(1024);
     private final Queue<ByteBuffer> packetsToTransmit = new ArrayDeque<>();
+    // The connection that owns the socket, this one unless it is a session opened on another
+    private final ServerConnection owner;
+    private final int session;
+    // The sessions opened on the socket, only used by its owner
+    private final ConcurrentMap<Integer, ServerConnection> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger lastSession = new AtomicInteger(BinaryProtocol.NO_SESSION);
     private final List<Broadcast> clientBroadcasters = new ArrayList<>();
-    private String host = "localhost";
-    private int port = 9091;
+    private final String host;
+    private final int port;
     private boolean connected;
     private volatile boolean transmit = false;
-    private final String DISCONNECT = "DISCONNECT";
     private MessageProcessor messageProcessor = new MessageProcessor();
+    private final WireFormat transmitFormat;
+    private WireFormat receiveFormat = WireFormat.TEXT;
+    private final CompletableFuture<Void> established = new CompletableFuture<>();
+    private final ConcurrentMap<Integer, CompletableFuture<ServerMessage>> pendingReplies = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSequence = new AtomicInteger();
+    // One per session, so listeners get the messages in the order they were received
+    private final Dispatcher<ServerMessage> dispatcher;
+    private final List<ServerMessage> untaggedBatch = new ArrayList<>();
+    private final List<ServerMessage> readOnlyUntaggedBatch = Collections.unmodifiableList(untaggedBatch);
+    private final SubmissionPublisher<ServerEvent> events = new SubmissionPublisher<>(ForkJoinPool.commonPool(), EVENT_BUFFER);
+    private volatile boolean readsPaused;
 
-    public void connect(Broadcast broadcaster) {
-        // Parameters for serverAddress are hardcoded during development
-        serverAddress = new InetSocketAddress(host, port);
+    /**
+     * Creates a connection that asks the server for the binary protocol.
+     * */
+    public ServerConnection() {
+        this(WireFormat.BINARY);
+    }
+
+    /**
+     * Creates a connection that talks the given wire format. The text protocol is the
+     * one every server understands.
+     * */
+    public ServerConnection(WireFormat format) {
+        this(format, "localhost", 9091);
+    }
+
+    public ServerConnection(WireFormat format, String host, int port) {
+        this.transmitFormat = format;
+        this.host = host;
+        this.port = port;
+        this.owner = this;
+        this.session = BinaryProtocol.NO_SESSION;
+        this.dispatcher = new Dispatcher<>(ForkJoinPool.commonPool(), this::deliver);
+        if (transmitFormat == WireFormat.BINARY) {
+            // Must be the very first bytes on the connection, whatever is sent before connecting
+            packetsToTransmit.add(BinaryProtocol.handshake());
+        }
+    }
+
+    /**
+     * A session on the socket of the given connection. Its messages wait in the same
+     * backlog, so any session that falls behind pauses reading for all of them.
+     * */
+    private ServerConnection(ServerConnection owner, int session) {
+        this.transmitFormat = owner.transmitFormat;
+        this.host = owner.host;
+        this.port = owner.port;
+        this.owner = owner;
+        this.session = session;
+        this.dispatcher = new Dispatcher<>(ForkJoinPool.commonPool(), this::deliver, owner.dispatcher.getBacklogCounter());
+    }
+
+    /**
+     * Opens one more session on the socket of this connection, for another player with a
+     * name, room and score of its own. The session is used like a connection of its own,
+     * except that connect() only opens the session and disconnect() only closes it.
+     * */
+    public ServerConnection openSession() {
+        ServerConnection opened = new ServerConnection(owner, owner.lastSession.incrementAndGet());
+        owner.sessions.put(opened.session, opened);
+        return opened;
+    }
+
+    /**
+     * @return a future that completes once the connection is established. Requests sent
+     * before that are queued.
+     * */
+    public CompletableFuture<Void> connect(Broadcast broadcaster) {
         clientBroadcasters.add(broadcaster);
+        if (owner != this) {
+            request(Command.CONNECT).whenComplete((opened, failure) -> {
+                if (failure != null) {
+                    established.completeExceptionally(failure);
+                    return;
+                }
+                established.complete(null);
+                dispatcher.post(ServerMessage.notice(messageProcessor, Command.CONNECT, "Someone just connected to the server!"));
+            });
+            return established;
+        }
+        serverAddress = new InetSocketAddress(host, port);
         new Thread(this).start();
+        return established;
     }
 
     @Override
@@ -40,7 +149,14 @@ public class ServerConnection implements Runnable {
             initSelector();
 
             while (connected || !packetsToTransmit.isEmpty()) {
-                if (transmit) {
+                if (readsPaused && dispatcher.getBacklog() <= RESUME_UNDELIVERED) {
+                    readsPaused = false;
+                    SelectionKey key = socketChannel.keyFor(selector);
+                    if (key.interestOps() == 0) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                if (transmit && socketChannel.isConnected()) {
                     socketChannel.keyFor(selector).interestOps(SelectionKey.OP_WRITE);
                     transmit = false;
                 }
@@ -63,6 +179,13 @@ public class ServerConnection implements Runnable {
             System.out.println("Server Connection: exception, server failure");
             e.printStackTrace();
         }
+        established.completeExceptionally(new IOException("The connection to the server is closed"));
+        // After whatever was received, so nothing that arrived is failed or lost
+        dispatcher.post(END_OF_MESSAGES);
+        for (ServerConnection opened : sessions.values()) {
+            opened.established.completeExceptionally(new IOException("The connection to the server is closed"));
+            opened.dispatcher.post(END_OF_MESSAGES);
+        }
         try {
             clientSideDisconnect();
         } catch (IOException e) {
@@ -84,16 +207,11 @@ public class ServerConnection implements Runnable {
 
     private void completeConnection(SelectionKey key) throws IOException {
         socketChannel.finishConnect();
-        key.interestOps(SelectionKey.OP_READ);
-        Executor pool = ForkJoinPool.commonPool();
-        for (Broadcast broadcaster : clientBroadcasters) {
-            pool.execute(new Runnable() {
-                @Override
-                public void run() {
-                    broadcaster.relayFromServer("Someone just connected to the server!");
-                }
-            });
+        synchronized (packetsToTransmit) {
+            key.interestOps(packetsToTransmit.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
         }
+        ForkJoinPool.commonPool().execute(() -> established.complete(null));
+        dispatcher.post(ServerMessage.notice(messageProcessor, Command.CONNECT, "Someone just connected to the server!"));
     }
 
     private void transmitToServer(SelectionKey key) throws IOException {
@@ -106,62 +224,288 @@ public class ServerConnection implements Runnable {
                 }
                 packetsToTransmit.remove();
             }
-            key.interestOps(SelectionKey.OP_READ);
+            key.interestOps(readsPaused ? 0 : SelectionKey.OP_READ);
         }
     }
 
     private void receiveFromServer(SelectionKey key) throws Exception {    //throws IOException
-        packetsToReceive.clear(); //Clears positioning and markers, doesn't clear content
+        if (!packetsToReceive.hasRemaining()) {
+            growReceiveBuffer();
+        }
         int numReadBytes = socketChannel.read(packetsToReceive);   //Read from the channel to the buffer
         if (numReadBytes == -1) {
             throw new Exception("Notice: numReadBytes == -1");
         }
 
-        String[] unprocessedMsg = extractMessageFromBuffer();
-        List<String> processedMsg = new ArrayList<>();
-        for (String s : unprocessedMsg) {
-            processedMsg.add(messageProcessor.processMsg(s));
+        packetsToReceive.flip();
+        try {
+            ServerMessage msg;
+            while ((msg = extractMessageFromBuffer()) != null) {
+                ServerConnection receiver = msg.getSession() == session ? this : sessions.get(msg.getSession());
+                if (receiver != null) {
+                    receiver.dispatcher.post(msg);
+                }
+            }
+        } finally {
+            // Keeps a partially received message for the next read
+            packetsToReceive.compact();
         }
-        //Question: are we creating a new thread with this as an argument?
-        Executor pool = ForkJoinPool.commonPool();
-        for (Broadcast broadcaster : clientBroadcasters) {
-            pool.execute(new Runnable() {
-                @Override
-                public void run() {
-                    for (String s : processedMsg) {
-                        broadcaster.relayFromServer(s);
-                    }
+        if (dispatcher.getBacklog() >= MAX_UNDELIVERED) {
+            // The listeners can't keep up, the server has to wait instead of the memory filling up
+            readsPaused = true;
+            key.interestOps(0);
+        }
+    }
+
+    /**
+     * Called by the dispatcher, off the selector thread, with everything received since
+     * the last batch. Replies complete their requests, the rest goes to the broadcasters.
+     * */
+    private void deliver(List<ServerMessage> batch) {
+        untaggedBatch.clear();
+        for (ServerMessage msg : batch) {
+            if (msg == END_OF_MESSAGES) {
+                endOfMessages();
+                continue;
+            }
+            if (msg.getSequence() == ServerMessage.UNTAGGED) {
+                untaggedBatch.add(msg);
+                if (events.hasSubscribers()) {
+                    publish(msg.getEvent());
                 }
-            });
+                continue;
+            }
+            CompletableFuture<ServerMessage> reply = pendingReplies.remove(msg.getSequence());
+            if (reply != null) {
+                complete(reply, msg);
+            }
+        }
+        if (!untaggedBatch.isEmpty()) {
+            for (Broadcast broadcaster : clientBroadcasters) {
+                broadcaster.relayBatch(readOnlyUntaggedBatch);
+            }
+        }
+        untaggedBatch.clear();
+        Selector current = owner.selector;
+        if (owner.readsPaused && current != null && dispatcher.getBacklog() <= RESUME_UNDELIVERED) {
+            current.wakeup();
+        }
+    }
+
+    private void publish(ServerEvent event) {
+        if (event.getType() == Command.STATE) {
+            // A subscriber that is behind skips it, the STATE that follows replaces it anyway
+            events.offer(event, null);
+        } else {
+            // Waits for demand, and reading pauses once enough piles up behind this
+            events.submit(event);
+        }
+    }
+
+    private void endOfMessages() {
+        IOException closed = new IOException("The connection to the server is closed");
+        for (Integer sequence : pendingReplies.keySet()) {
+            CompletableFuture<ServerMessage> reply = pendingReplies.remove(sequence);
+            if (reply != null) {
+                reply.completeExceptionally(closed);
+            }
         }
+        events.close();
     }
 
-    private String[] extractMessageFromBuffer() {
+    /**
+     * The messages that are not replies, as typed events, parsed once. Each subscriber gets
+     * them in order, as fast as it requests them. One that falls behind skips STATEs, and
+     * once enough other events wait for it the connection stops reading from the server
+     * until it catches up. So a subscriber must not wait for the reply to a request in
+     * onNext. The stream completes when the connection closes.
+     * */
+    public Flow.Publisher<ServerEvent> events() {
+        return events;
+    }
+
+    /**
+     * Takes the next complete message out of the receive buffer.
+     * @return the message, or null if there is no complete message in the buffer.
+     * */
+    private ServerMessage extractMessageFromBuffer() throws IOException {
+        if (!packetsToReceive.hasRemaining()) {
+            return null;
+        }
+        if (receiveFormat == WireFormat.BINARY) {
+            ByteBuffer frame = BinaryProtocol.nextFrame(packetsToReceive);
+            if (frame == null) {
+                return null;
+            }
+            int session = BinaryProtocol.NO_SESSION;
+            if (Command.fromOpcode(frame.get(frame.position())) == Command.SESSION) {
+                frame.get();
+                session = BinaryProtocol.getVarint(frame);
+            }
+            int sequence = ServerMessage.UNTAGGED;
+            if (Command.fromOpcode(frame.get(frame.position())) == Command.TAGGED) {
+                frame.get();
+                sequence = BinaryProtocol.getVarint(frame);
+            }
+            // A copy, the receive buffer is reused before the message is rendered
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining()).put(frame).flip();
+            return ServerMessage.fromFrame(messageProcessor, copy, sequence, session);
+        }
+
+        int start = packetsToReceive.position();
+        if (transmitFormat == WireFormat.BINARY && packetsToReceive.get(start) == BinaryProtocol.MAGIC) {
+            // The server accepted the binary protocol, everything after this is binary
+            if (packetsToReceive.remaining() < BinaryProtocol.HANDSHAKE_LENGTH) {
+                return null;
+            }
+            packetsToReceive.position(start + BinaryProtocol.HANDSHAKE_LENGTH);
+            receiveFormat = WireFormat.BINARY;
+            return extractMessageFromBuffer();
+        }
+        for (int i = start; i < packetsToReceive.limit(); i++) {
+            if (packetsToReceive.get(i) == END_OF_MSG_DELIMITER.charAt(0)) {
+                byte[] bytes = new byte[i - start];
+                packetsToReceive.get(bytes);
+                packetsToReceive.get(); // Skips the delimiter
+                String msg = new String(bytes, StandardCharsets.UTF_8);
+                int session = BinaryProtocol.NO_SESSION;
+                if (messageProcessor.typeOf(msg) == Command.SESSION) {
+                    session = wrapperNumber(msg);
+                    msg = unwrap(msg);
+                }
+                int sequence = ServerMessage.UNTAGGED;
+                if (messageProcessor.typeOf(msg) == Command.TAGGED) {
+                    sequence = wrapperNumber(msg);
+                    msg = unwrap(msg);
+                }
+                return ServerMessage.fromText(messageProcessor, msg, sequence, session);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of a SESSION or TAGGED text message, the 12 of SESSION&12&message.
+     * */
+    private static int wrapperNumber(String msg) {
+        int start = msg.indexOf(DATA_DELIMITER) + 1;
+        return Integer.parseInt(msg.substring(start, msg.indexOf(DATA_DELIMITER, start)));
+    }
+
+    /**
+     * @return the message a SESSION or TAGGED text message wraps.
+     * */
+    private static String unwrap(String msg) {
+        int start = msg.indexOf(DATA_DELIMITER) + 1;
+        return msg.substring(msg.indexOf(DATA_DELIMITER, start) + 1);
+    }
+
+    private void growReceiveBuffer() {
+        ByteBuffer larger = ByteBuffer.allocateDirect(packetsToReceive.capacity() * 2);
         packetsToReceive.flip();
-        byte[] bytes = new byte[packetsToReceive.remaining()];
-        packetsToReceive.get(bytes);
-        return new String(bytes).split(END_OF_MSG_DELIMITER);
+        larger.put(packetsToReceive);
+        packetsToReceive = larger;
+    }
+
+    private static void complete(CompletableFuture<ServerMessage> reply, ServerMessage msg) {
+        if (msg.getType() == Command.ERROR) {
+            reply.completeExceptionally(new IOException(msg.getRendered()));
+        } else {
+            reply.complete(msg);
+        }
+    }
+
+    /**
+     * Sends a request tagged with a sequence number of its own, the server answers it with
+     * the same number. The reply is not relayed to the broadcasters, though the room still
+     * gets the events it causes. DISCONNECT is never answered.
+     * @return the reply. It fails if the server refused the request or the connection closed.
+     * */
+    public CompletableFuture<ServerMessage> request(Command cmd, String... data) {
+        // Never negative, that is UNTAGGED
+        int sequence = nextSequence.getAndIncrement() & Integer.MAX_VALUE;
+        CompletableFuture<ServerMessage> reply = new CompletableFuture<>();
+        pendingReplies.put(sequence, reply);
+        transmitToServer(sequence, cmd, data);
+        return reply;
+    }
+
+    /**
+     * @return the user's own USER event.
+     * */
+    public CompletableFuture<ServerMessage> usernameAsync(String name) {
+        return request(Command.USER, name);
+    }
+
+    /**
+     * @return the user's own JOIN event.
+     * */
+    public CompletableFuture<ServerMessage> joinRoomAsync(String room) {
+        return request(Command.JOIN, room);
+    }
+
+    /**
+     * @return the STATE of the new game, or of the one already running.
+     * */
+    public CompletableFuture<ServerMessage> startGameAsync(String... constraints) {
+        return request(Command.START, constraints);
+    }
+
+    /**
+     * @return the STATE after the guess, or NOT_RUNNING.
+     * */
+    public CompletableFuture<ServerMessage> guessAsync(String lit) {
+        return request(Command.GUESS, lit);
+    }
+
+    public CompletableFuture<ServerMessage> getScoreAsync() {
+        return request(Command.SCORE);
+    }
+
+    public CompletableFuture<ServerMessage> getRulesAsync() {
+        return request(Command.RULES);
     }
 
     public void username(String name) {
-        transmitToServer(common.Command.USER.toString(), name);
+        transmitToServer(Command.USER, name);
+    }
+    public void joinRoom(String room) {
+        transmitToServer(Command.JOIN, room);
     }
-    public void startGame() {
-        transmitToServer(common.Command.START.toString());
+    /**
+     * @param constraints optional, a word length or range like 5-8, and a difficulty.
+     * */
+    public void startGame(String... constraints) {
+        transmitToServer(Command.START, constraints);
     }
     public void guess(String lit) {
-        transmitToServer(common.Command.GUESS.toString(), lit);
+        transmitToServer(Command.GUESS, lit);
     }
     public void getScore() {
-        transmitToServer(common.Command.SCORE.toString());
+        transmitToServer(Command.SCORE);
+    }
+    /**
+     * @param size optional, how many players to show.
+     * */
+    public void getLeaderboard(String... size) {
+        transmitToServer(Command.LEADERBOARD, size);
+    }
+    public void getStats() {
+        transmitToServer(Command.STATS);
     }
     public void getRules() {
-        transmitToServer(common.Command.RULES.toString());
+        transmitToServer(Command.RULES);
     }
 
     public void disconnect() throws IOException {
+        if (owner != this) {
+            transmitToServer(Command.DISCONNECT);
+            owner.sessions.remove(session, this);
+            dispatcher.post(END_OF_MESSAGES);
+            return;
+        }
         connected = false;
-        transmitToServer(DISCONNECT);
+        transmitToServer(Command.DISCONNECT);
     }
 
     private void clientSideDisconnect() throws IOException {
@@ -169,14 +513,44 @@ public class ServerConnection implements Runnable {
         socketChannel.keyFor(selector).cancel();
     }
 
-    private void transmitToServer(String... data) {
-        StringJoiner sj = new StringJoiner(WORD_DELIMITER);
-        for (String d: data)
-            sj.add(d);
-        String packet = Integer.toString(sj.length()) + LENGTH_DELIMITER + sj.toString();
-        packetsToTransmit.add(ByteBuffer.wrap(packet.getBytes()));
+    private void transmitToServer(Command cmd, String... data) {
+        transmitToServer(ServerMessage.UNTAGGED, cmd, data);
+    }
+
+    private void transmitToServer(int sequence, Command cmd, String... data) {
+        boolean tagged = sequence != ServerMessage.UNTAGGED;
+        ByteBuffer packet;
+        if (transmitFormat == WireFormat.BINARY) {
+            packet = BinaryProtocol.wrappedFrame(session, sequence, cmd, data);
+        } else {
+            StringJoiner sj = new StringJoiner(WORD_DELIMITER);
+            if (session != BinaryProtocol.NO_SESSION) {
+                sj.add(Command.SESSION.toString()).add(Integer.toString(session));
+            }
+            if (tagged) {
+                sj.add(Command.TAGGED.toString()).add(Integer.toString(sequence));
+            }
+            sj.add(cmd.toString());
+            for (String d: data)
+                sj.add(d);
+            byte[] body = sj.toString().getBytes(StandardCharsets.UTF_8);
+            byte[] header = (Integer.toString(body.length) + LENGTH_DELIMITER).getBytes(StandardCharsets.UTF_8);
+            packet = ByteBuffer.allocate(header.length + body.length);
+            packet.put(header).put(body).flip();
+        }
+        owner.enqueue(packet);
+    }
+
+    private void enqueue(ByteBuffer packet) {
+        synchronized (packetsToTransmit) {
+            packetsToTransmit.add(packet);
+        }
 
         transmit = true;
-        selector.wakeup();
+        Selector current = selector;
+        if (current != null) {
+            // Otherwise the packet is sent once the connection is established
+            current.wakeup();
+        }
     }
 }
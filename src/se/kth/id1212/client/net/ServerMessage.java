@@ -0,0 +1,110 @@
+package se.kth.id1212.client.net;
+
+import common.BinaryProtocol;
+import common.Command;
+import se.kth.id1212.client.event.ServerEvent;
+import se.kth.id1212.client.event.TextEvent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A message from the server. It is parsed into an event, and rendered for the user, the
+ * first time either is asked for, so a listener that drops a message, or only needs its
+ * type, never pays for it.
+ * */
+public class ServerMessage {
+    static final int UNTAGGED = BinaryProtocol.UNTAGGED;
+    private final Command type;
+    private final int sequence;
+    private final int session;
+    private final MessageProcessor processor;
+    // The message as received, one of the two, until it is parsed
+    private final String text;
+    private final ByteBuffer frame;
+    private volatile ServerEvent event;
+    private volatile String rendered;
+
+    private ServerMessage(Command type, int sequence, int session, MessageProcessor processor, String text,
+                          ByteBuffer frame, ServerEvent event) {
+        this.type = type;
+        this.sequence = sequence;
+        this.session = session;
+        this.processor = processor;
+        this.text = text;
+        this.frame = frame;
+        this.event = event;
+    }
+
+    /**
+     * A message the connection makes up itself.
+     * */
+    static ServerMessage notice(MessageProcessor processor, Command type, String text) {
+        return new ServerMessage(type, UNTAGGED, BinaryProtocol.NO_SESSION, processor, null, null,
+                new TextEvent(type, text));
+    }
+
+    /**
+     * @param text a message in the text protocol, without the SESSION and TAGGED wrappers.
+     * */
+    static ServerMessage fromText(MessageProcessor processor, String text, int sequence, int session) {
+        return new ServerMessage(processor.typeOf(text), sequence, session, processor, text, null, null);
+    }
+
+    /**
+     * @param frame a binary frame of its own, starting at the opcode of the wrapped frame.
+     * */
+    static ServerMessage fromFrame(MessageProcessor processor, ByteBuffer frame, int sequence, int session) {
+        return new ServerMessage(Command.fromOpcode(frame.get(frame.position())), sequence, session, processor,
+                null, frame, null);
+    }
+
+    /**
+     * @return the command of the message, or null if the server sent an unknown one.
+     * */
+    public Command getType() {
+        return type;
+    }
+
+    /**
+     * Parses the message the first time. Racing threads may both parse it, they get equal
+     * events.
+     * @return the event, an ERROR TextEvent if the message is malformed.
+     * */
+    public ServerEvent getEvent() {
+        if (event == null) {
+            try {
+                event = text != null ? processor.parseMsg(text) : processor.parseFrame(frame.duplicate());
+            } catch (IOException | RuntimeException e) {
+                event = new TextEvent(Command.ERROR, "Malformed " + type + " message");
+            }
+        }
+        return event;
+    }
+
+    public String getRendered() {
+        if (rendered == null) {
+            rendered = processor.render(getEvent());
+        }
+        return rendered;
+    }
+
+    /**
+     * @return the sequence number of the request this answers, or UNTAGGED.
+     * */
+    int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the session of the connection the message is for.
+     * */
+    int getSession() {
+        return session;
+    }
+
+    @Override
+    public String toString() {
+        return getRendered();
+    }
+}
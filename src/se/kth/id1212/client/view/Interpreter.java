@@ -1,13 +1,17 @@
 package se.kth.id1212.client.view;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 
 import common.Command;
 import se.kth.id1212.client.net.Broadcast;
 import se.kth.id1212.client.net.ServerConnection;
+import se.kth.id1212.client.net.ServerMessage;
 
 import static common.Constants.LENGTH_DELIMITER;
+import static common.Constants.NEW_LINE;
 import static common.Constants.WORD_DELIMITER;
 
 public class Interpreter implements Runnable {
@@ -26,10 +30,14 @@ public class Interpreter implements Runnable {
             "    CONNECT: connects you to the server.\n" +
                     "    DISCONNECT: disconnects you from the server.\n" +
                     "    USER [name]: change your screen name. \n" +
-                    "    START: start a new game.\n" +
+                    "    JOIN [room]: move to another game room.\n" +
+                    "    START [length|from-to] [EASY|MEDIUM|HARD]: start a new game, optionally with\n" +
+                    "        a word of the given length and difficulty, e.g. START 5-8 HARD.\n" +
                     "    GUESS [letter|word]: make a guess, letter or whole word.\n" +
                     "    RULES: shows the rules of the game.\n" +
-                    "    SCORE: shows your score.\n";
+                    "    SCORE: shows your score.\n" +
+                    "    LEADERBOARD [size]: shows the players with the best scores.\n" +
+                    "    STATS: shows the server's metrics, for admins.\n";
 
     /**
     * Starts up a new interpreter thread.
@@ -65,8 +73,11 @@ public class Interpreter implements Runnable {
                     case USER:
                         serverConnection.username(parseLiteral(input));
                         break;
+                    case JOIN:
+                        serverConnection.joinRoom(parseLiteral(input));
+                        break;
                     case START:
-                        serverConnection.startGame();
+                        serverConnection.startGame(parseArguments(input));
                         break;
                     case GUESS:
                     serverConnection.guess(parseLiteral(input));
@@ -77,6 +88,12 @@ public class Interpreter implements Runnable {
                     case SCORE:
                         serverConnection.getScore();
                         break;
+                    case LEADERBOARD:
+                        serverConnection.getLeaderboard(parseArguments(input));
+                        break;
+                    case STATS:
+                        serverConnection.getStats();
+                        break;
                     case HELP:
                         System.out.println(COMMANDS_DESCRIPTION);
                         break;
@@ -109,10 +126,41 @@ public class Interpreter implements Runnable {
         return input.split(WORD_DELIMITER)[1];
     }
 
+    private String[] parseArguments(String input) {
+        String[] words = input.split(WORD_DELIMITER);
+        return Arrays.copyOfRange(words, 1, words.length);
+    }
+
     private class Broadcaster implements Broadcast {
         public void relayFromServer(String trans) {
             printer.println(trans);
             printer.print(PROMPT);
         }
+
+        /**
+         * Prints the whole batch at once with one prompt. Only the latest STATE is shown,
+         * the older ones in the batch are never rendered.
+         * */
+        @Override
+        public void relayBatch(List<ServerMessage> batch) {
+            int latestState = -1;
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.get(i).getType() == Command.STATE) {
+                    latestState = i;
+                }
+            }
+            StringBuilder output = new StringBuilder();
+            for (int i = 0; i < batch.size(); i++) {
+                ServerMessage msg = batch.get(i);
+                if (msg.getType() == Command.STATE && i != latestState) {
+                    continue;
+                }
+                if (output.length() > 0) {
+                    output.append(NEW_LINE);
+                }
+                output.append(msg.getRendered());
+            }
+            relayFromServer(output.toString());
+        }
     }
 }
@@ -0,0 +1,179 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The compact binary protocol.
+ *
+ * A client asks for it by sending MAGIC and VERSION as the very first bytes on the
+ * connection. A text frame always starts with a digit, so the server can tell the two
+ * apart from the first byte. The server answers with the same two bytes, and everything
+ * after that answer is binary in both directions. Clients that never send MAGIC keep
+ * talking the text protocol.
+ *
+ * Every binary frame is a varint length followed by that many bytes: one opcode byte
+ * (see Command.opcode()) and the payload. Payloads are a sequence of strings, each one a
+ * varint length followed by UTF-8 bytes, except for STATE which is packed as:
+ *     varint  number of letters
+ *     byte    1 if the game is won, otherwise 0
+ *     varint  remaining attempts
+ *     bytes   revealed mask, one bit per position, (letters + 7) / 8 bytes
+ *     varints the revealed letters in position order, each one its UTF-16 code unit, so
+ *             letters outside ASCII survive and the rest take a byte each
+ *     int     guessed letters, bit n is set if letter 'A' + n has been guessed
+ * A TAGGED frame carries a varint sequence number and then the opcode and payload of the
+ * frame it wraps. A SESSION frame does the same with a varint session id, the wrapped frame
+ * belongs to that session of the connection. Session 0 is the connection's own and is never
+ * wrapped. A SESSION frame may wrap a TAGGED one, not the other way around.
+ * */
+public class BinaryProtocol {
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final byte VERSION = 1;
+    public static final int HANDSHAKE_LENGTH = 2;
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+    public static final char UNKNOWN_LETTER = '_';
+    public static final int NO_SESSION = 0;
+    public static final int UNTAGGED = -1;
+
+    private BinaryProtocol() {}
+
+    public static ByteBuffer handshake() {
+        return ByteBuffer.wrap(new byte[]{MAGIC, VERSION});
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static int getVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Truncated varint");
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static int stringSize(byte[] utf8) {
+        return varintSize(utf8.length) + utf8.length;
+    }
+
+    public static void putString(ByteBuffer buffer, byte[] utf8) {
+        putVarint(buffer, utf8.length);
+        buffer.put(utf8);
+    }
+
+    public static String getString(ByteBuffer buffer) throws IOException {
+        int length = getVarint(buffer);
+        if (length > buffer.remaining()) {
+            throw new IOException("Truncated string");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds a frame whose payload is the given strings.
+     * */
+    public static ByteBuffer frame(Command cmd, String... fields) {
+        return wrappedFrame(NO_SESSION, UNTAGGED, cmd, fields);
+    }
+
+    /**
+     * Builds a TAGGED frame that wraps a frame whose payload is the given strings.
+     * */
+    public static ByteBuffer taggedFrame(int sequence, Command cmd, String... fields) {
+        return wrappedFrame(NO_SESSION, sequence, cmd, fields);
+    }
+
+    /**
+     * Builds a frame whose payload is the given strings, wrapped in a SESSION frame unless
+     * the session is NO_SESSION, and in a TAGGED frame unless the sequence is UNTAGGED.
+     * */
+    public static ByteBuffer wrappedFrame(int session, int sequence, Command cmd, String... fields) {
+        boolean tagged = sequence != UNTAGGED;
+        byte[][] encoded = new byte[fields.length][];
+        int bodyLength = 1;
+        if (session != NO_SESSION) {
+            bodyLength += 1 + varintSize(session);
+        }
+        if (tagged) {
+            bodyLength += 1 + varintSize(sequence);
+        }
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            bodyLength += stringSize(encoded[i]);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(varintSize(bodyLength) + bodyLength);
+        putVarint(frame, bodyLength);
+        if (session != NO_SESSION) {
+            frame.put(Command.SESSION.opcode());
+            putVarint(frame, session);
+        }
+        if (tagged) {
+            frame.put(Command.TAGGED.opcode());
+            putVarint(frame, sequence);
+        }
+        frame.put(cmd.opcode());
+        for (byte[] field : encoded) {
+            putString(frame, field);
+        }
+        return frame.flip();
+    }
+
+    /**
+     * Takes the next complete frame out of the buffer.
+     * @return a buffer that starts at the opcode and ends with the payload, or null if
+     * the buffer doesn't hold a whole frame yet. Nothing is consumed in that case.
+     * */
+    public static ByteBuffer nextFrame(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (!buffer.hasRemaining()) {
+                buffer.position(start);
+                return null;
+            }
+            if (shift > 28) {
+                throw new IOException("Malformed frame length");
+            }
+            b = buffer.get();
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Illegal frame length " + length);
+        }
+        if (buffer.remaining() < length) {
+            buffer.position(start);
+            return null;
+        }
+        ByteBuffer frame = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return frame;
+    }
+}
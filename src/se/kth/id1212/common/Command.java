@@ -1,15 +1,51 @@
 package common;
 
 public enum Command {
-    CONNECT,
-    DISCONNECT,
-    USER,
-    START,
-    GUESS,
-    RULES,
-    STATE,
-    SCORE,
-    RUNNING,
-    NOT_RUNNING,
-    HELP
+    CONNECT(1),
+    DISCONNECT(2),
+    USER(3),
+    JOIN(4),
+    START(5),
+    GUESS(6),
+    RULES(7),
+    STATE(8),
+    SCORE(9),
+    RUNNING(10),
+    NOT_RUNNING(11),
+    HELP(12),
+    LEADERBOARD(13),
+    STATS(14),
+    // Wraps a request, or the reply to it, with the sequence number the client chose
+    TAGGED(15),
+    ERROR(16),
+    // Wraps a frame of one of the sessions multiplexed over the connection
+    SESSION(17);
+
+    private static final Command[] BY_OPCODE = new Command[256];
+
+    static {
+        for (Command cmd : values()) {
+            BY_OPCODE[cmd.opcode & 0xFF] = cmd;
+        }
+    }
+
+    private final byte opcode;
+
+    Command(int opcode) {
+        this.opcode = (byte) opcode;
+    }
+
+    /**
+     * The one byte code that identifies the command in the binary protocol.
+     * */
+    public byte opcode() {
+        return opcode;
+    }
+
+    /**
+     * @return the command with the given opcode, or null if there is none.
+     * */
+    public static Command fromOpcode(byte opcode) {
+        return BY_OPCODE[opcode & 0xFF];
+    }
 }
@@ -0,0 +1,10 @@
+package common;
+
+/**
+ * The two ways messages can be written on the wire. TEXT is the original delimiter based
+ * protocol, BINARY is the compact protocol described in BinaryProtocol.
+ * */
+public enum WireFormat {
+    TEXT,
+    BINARY
+}
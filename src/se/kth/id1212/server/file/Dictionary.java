@@ -0,0 +1,120 @@
+package se.kth.id1212.server.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An immutable dictionary compiled by DictionaryCompiler and mapped into memory. The words
+ * stay off the heap and a word is only decoded when it is drawn. Only absolute reads are
+ * used, so any number of threads can draw from the same dictionary.
+ * */
+public class Dictionary {
+    private final ByteBuffer words;
+    private static final Difficulty[] DIFFICULTIES = Difficulty.values();
+    private static final int NO_DIFFICULTIES = DIFFICULTIES.length;
+    private final int noWords;
+    private final int longest;
+    private final int offsetTableStart;
+    private final int wordsStart;
+
+    private Dictionary(ByteBuffer words) throws IOException {
+        if (words.getInt(Integer.BYTES) != DictionaryCompiler.FORMAT_VERSION) {
+            throw new IOException("Unsupported dictionary format");
+        }
+        this.words = words;
+        noWords = words.getInt(2 * Integer.BYTES);
+        longest = words.getInt(3 * Integer.BYTES);
+        offsetTableStart = DictionaryCompiler.HEADER_LENGTH + NO_DIFFICULTIES * (longest + 2) * Integer.BYTES;
+        wordsStart = offsetTableStart + (noWords + 1) * Integer.BYTES;
+        if (noWords <= 0) {
+            throw new IOException("The dictionary has no words");
+        }
+        if (wordsStart > words.capacity() || wordsStart + offset(noWords) != words.capacity()) {
+            // Most likely a file that is still being written
+            throw new IOException("The dictionary is truncated");
+        }
+    }
+
+    /**
+     * @return the dictionary in the file, or null if the file isn't a compiled dictionary.
+     * */
+    static Dictionary open(Path path) throws IOException {
+        ByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mapped.capacity() < DictionaryCompiler.HEADER_LENGTH || mapped.getInt(0) != DictionaryCompiler.MAGIC) {
+            return null;
+        }
+        return new Dictionary(mapped);
+    }
+
+    public int size() {
+        return noWords;
+    }
+
+    /**
+     * @param difficulty the difficulty, or null for any.
+     * @return the number of words with between minLength and maxLength letters.
+     * */
+    public int count(int minLength, int maxLength, Difficulty difficulty) {
+        minLength = Math.max(minLength, 0);
+        maxLength = Math.min(maxLength, longest);
+        if (minLength > maxLength) {
+            return 0;
+        }
+        if (difficulty != null) {
+            return bucketStart(difficulty, maxLength + 1) - bucketStart(difficulty, minLength);
+        }
+        int total = 0;
+        for (Difficulty d : DIFFICULTIES) {
+            total += bucketStart(d, maxLength + 1) - bucketStart(d, minLength);
+        }
+        return total;
+    }
+
+    /**
+     * Numbers the words that count() counts, bucket by bucket, so any of them is reached
+     * without a scan.
+     * @param n the number of the word, from 0 to the count.
+     * */
+    public String matchingWord(int minLength, int maxLength, Difficulty difficulty, int n) {
+        minLength = Math.max(minLength, 0);
+        maxLength = Math.min(maxLength, longest);
+        if (difficulty != null) {
+            return word(bucketStart(difficulty, minLength) + n);
+        }
+        for (Difficulty d : DIFFICULTIES) {
+            int from = bucketStart(d, minLength);
+            int size = bucketStart(d, maxLength + 1) - from;
+            if (n < size) {
+                return word(from + n);
+            }
+            n -= size;
+        }
+        throw new IndexOutOfBoundsException("There are not " + (n + 1) + " matching words");
+    }
+
+    public String word(int index) {
+        int start = offset(index);
+        byte[] utf8 = new byte[offset(index + 1) - start];
+        for (int i = 0; i < utf8.length; i++) {
+            utf8[i] = words.get(wordsStart + start + i);
+        }
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private int bucketStart(Difficulty difficulty, int length) {
+        return words.getInt(DictionaryCompiler.HEADER_LENGTH +
+                (difficulty.ordinal() * (longest + 2) + length) * Integer.BYTES);
+    }
+
+    private int offset(int index) {
+        return words.getInt(offsetTableStart + index * Integer.BYTES);
+    }
+}
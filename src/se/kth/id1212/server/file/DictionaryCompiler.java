@@ -0,0 +1,179 @@
+package se.kth.id1212.server.file;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Compiles a word list, one word per line, into the binary dictionary that WordFetcher maps.
+ * Run it offline: java se.kth.id1212.server.file.DictionaryCompiler words.txt words.dict
+ *
+ * The words are trimmed, uppercased and deduplicated, given a Difficulty, and sorted by
+ * difficulty, then length. The layout, all ints big-endian:
+ *     int     MAGIC
+ *     int     FORMAT_VERSION
+ *     int     number of words, n
+ *     int     longest word in letters, m
+ *     int[]   bucket index, m + 2 entries per difficulty, in Difficulty order. Entry l of
+ *             difficulty d is the index of the first word of d with l letters, so those
+ *             words are [index[d][l], index[d][l + 1]), and the words of d with between
+ *             a and b letters are the single range [index[d][a], index[d][b + 1])
+ *     int[]   offset table, n + 1 entries, word i is the bytes [offset[i], offset[i + 1])
+ *     bytes   the words as UTF-8, offsets are relative to the start of this section
+ * */
+public class DictionaryCompiler {
+    static final int MAGIC = 0x48444943;
+    static final int FORMAT_VERSION = 2;
+    static final int HEADER_LENGTH = 4 * Integer.BYTES;
+    private static final int NO_ALPHABET_LETTERS = 26;
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: DictionaryCompiler <words.txt> <words.dict>");
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            int noWords = compile(Paths.get(args[0]), Paths.get(args[1]));
+            System.out.println("Compiled " + noWords + " words in " +
+                    (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the number of words written.
+     * */
+    static int compile(Path source, Path target) throws IOException {
+        Set<String> normalized = new HashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String word = line.trim().toUpperCase(Locale.ROOT);
+                if (!word.isEmpty()) {
+                    normalized.add(word);
+                }
+            }
+        }
+        List<Entry> entries = rankByDifficulty(normalized);
+        entries.sort(Comparator.comparing((Entry entry) -> entry.difficulty)
+                .thenComparingInt(entry -> entry.word.length())
+                .thenComparing(entry -> entry.word));
+        int longest = 0;
+        for (Entry entry : entries) {
+            longest = Math.max(longest, entry.word.length());
+        }
+
+        int noDifficulties = Difficulty.values().length;
+        int[][] bucketIndex = new int[noDifficulties][longest + 2];
+        for (Entry entry : entries) {
+            bucketIndex[entry.difficulty.ordinal()][entry.word.length()]++;
+        }
+        // Turns the bucket sizes into the index of the first word in each bucket
+        int first = 0;
+        for (int[] buckets : bucketIndex) {
+            for (int length = 0; length < buckets.length; length++) {
+                int size = buckets[length];
+                buckets[length] = first;
+                first += size;
+            }
+        }
+        int[] offsets = new int[entries.size() + 1];
+        List<byte[]> words = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            byte[] utf8 = entry.word.getBytes(StandardCharsets.UTF_8);
+            offsets[words.size() + 1] = offsets[words.size()] + utf8.length;
+            words.add(utf8);
+        }
+
+        // Written next to the target and moved over it, a reader never maps a half written file
+        Path partial = Paths.get(target + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partial)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(words.size());
+            out.writeInt(longest);
+            for (int[] buckets : bucketIndex) {
+                for (int index : buckets) {
+                    out.writeInt(index);
+                }
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            for (byte[] word : words) {
+                out.write(word);
+            }
+        }
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return words.size();
+    }
+
+    /**
+     * A word is as hard as the average rarity of its distinct letters, where the rarity of a
+     * letter is -log of its share of all letters in the dictionary. The easiest third of the
+     * words is EASY, the hardest third HARD.
+     * */
+    private static List<Entry> rankByDifficulty(Set<String> normalized) {
+        long[] letterCounts = new long[NO_ALPHABET_LETTERS];
+        long noLetters = 0;
+        for (String word : normalized) {
+            for (int i = 0; i < word.length(); i++) {
+                int letter = word.charAt(i) - 'A';
+                if (letter >= 0 && letter < NO_ALPHABET_LETTERS) {
+                    letterCounts[letter]++;
+                    noLetters++;
+                }
+            }
+        }
+        double[] rarity = new double[NO_ALPHABET_LETTERS];
+        for (int letter = 0; letter < NO_ALPHABET_LETTERS; letter++) {
+            rarity[letter] = letterCounts[letter] == 0 ? 0 : -Math.log((double) letterCounts[letter] / noLetters);
+        }
+
+        List<Entry> entries = new ArrayList<>(normalized.size());
+        for (String word : normalized) {
+            int distinct = 0;
+            double sum = 0;
+            for (int i = 0; i < word.length(); i++) {
+                int letter = word.charAt(i) - 'A';
+                if (letter >= 0 && letter < NO_ALPHABET_LETTERS && (distinct & (1 << letter)) == 0) {
+                    distinct |= 1 << letter;
+                    sum += rarity[letter];
+                }
+            }
+            int noDistinct = Integer.bitCount(distinct);
+            entries.add(new Entry(word, noDistinct == 0 ? 0 : sum / noDistinct));
+        }
+        entries.sort(Comparator.comparingDouble(entry -> entry.rarity));
+        Difficulty[] difficulties = Difficulty.values();
+        for (int rank = 0; rank < entries.size(); rank++) {
+            entries.get(rank).difficulty = difficulties[(int) ((long) rank * difficulties.length / entries.size())];
+        }
+        return entries;
+    }
+
+    private static class Entry {
+        private final String word;
+        private final double rarity;
+        private Difficulty difficulty;
+
+        Entry(String word, double rarity) {
+            this.word = word;
+            this.rarity = rarity;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package se.kth.id1212.server.file;
+
+/**
+ * How hard a word is to guess. The compiler ranks the words by how rare their letters are
+ * in the whole dictionary and puts a third of them in each bucket.
+ * */
+public enum Difficulty {
+    EASY,
+    MEDIUM,
+    HARD
+}
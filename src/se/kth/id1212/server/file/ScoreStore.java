@@ -0,0 +1,330 @@
+package se.kth.id1212.server.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The scores of all named players, kept across disconnects and restarts. There is one per
+ * process. A change updates the scores in memory right away and is queued for the journal,
+ * so it never waits for the disk. A thread of its own appends everything queued as one
+ * batch and forces it to disk once per batch, so many changes share one fsync.
+ *
+ * The journal is compacted into a snapshot once it grows long, and on startup the snapshot
+ * is read and the journal replayed on top of it. Both live in the directory given by the
+ * system property hangman.scores, the working directory by default. The journal starts with
+ * its generation as a long, then every record is the name, a short length and UTF-8, and
+ * the change as an int. A snapshot is the last generation it includes, the number of
+ * players, then for every player the name and the score in the same encoding. Names are
+ * limited to MAX_NAME_BYTES.
+ *
+ * The store fails to start if the scores can't be recovered. If the journal fails later,
+ * the scores are kept in memory only, and nothing more is queued for the journal.
+ * */
+public class ScoreStore implements Runnable {
+    public static final String DIRECTORY_PROPERTY = "hangman.scores";
+    public static final int MAX_NAME_BYTES = 0xFFFF;
+    private static final String JOURNAL = "scores.journal";
+    private static final String SNAPSHOT = "scores.snapshot";
+    private static final int MAX_BATCH = 4096;
+    private static final int COMPACT_AFTER_RECORDS = 100_000;
+    private static final Change END_OF_JOURNAL = new Change(null, 0);
+    private static final ScoreStore SHARED = new ScoreStore(Paths.get(System.getProperty(DIRECTORY_PROPERTY, ".")));
+    private final Path journalPath;
+    private final Path snapshotPath;
+    private final ConcurrentMap<String, Integer> scores = new ConcurrentHashMap<>();
+    // Readers may see a player twice for a moment while the score is being moved
+    private final ConcurrentSkipListSet<Ranking> ranking = new ConcurrentSkipListSet<>();
+    private final AtomicLong rankingVersion = new AtomicLong();
+    // What is on disk, only touched by the journal thread, a snapshot is taken from this
+    private final Map<String, Integer> durableScores = new HashMap<>();
+    private final BlockingQueue<Change> changesToJournal = new LinkedBlockingQueue<>();
+    private final Thread journalWriter;
+    private volatile boolean journaling = true;
+    private FileChannel journal;
+    private long generation;
+    private int recordsSinceSnapshot;
+
+    private ScoreStore(Path directory) {
+        journalPath = directory.resolve(JOURNAL);
+        snapshotPath = directory.resolve(SNAPSHOT);
+        try {
+            recover();
+        } catch (IOException e) {
+            // Running on would silently lose every score from here on
+            throw new UncheckedIOException("Could not recover the scores from " + directory.toAbsolutePath(), e);
+        }
+        journalWriter = new Thread(this, "score-journal");
+        journalWriter.setDaemon(true);
+        journalWriter.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    public static ScoreStore shared() {
+        return SHARED;
+    }
+
+    public int getScore(String player) {
+        return scores.getOrDefault(player, 0);
+    }
+
+    /**
+     * @return the best players, best first. Ties are in name order.
+     * */
+    public List<Ranking> getTop(int n) {
+        List<Ranking> top = new ArrayList<>(n);
+        for (Ranking entry : ranking) {
+            if (top.size() == n) {
+                break;
+            }
+            top.add(entry);
+        }
+        return top;
+    }
+
+    /**
+     * Rises after every score change, so a rendering of the ranking can be reused until then.
+     * */
+    public long getRankingVersion() {
+        return rankingVersion.get();
+    }
+
+    /**
+     * Never blocks, the change is written to the journal in the background.
+     * @throws IllegalArgumentException if the name is longer than MAX_NAME_BYTES.
+     * @return the new score.
+     * */
+    public int addScore(String player, int change) {
+        if (player.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("The name is too long to be saved");
+        }
+        // The ranking is updated under the map's lock for this player, so updates of the same
+        // player can't interleave, and each one costs O(log n)
+        int score = scores.compute(player, (name, old) -> {
+            int updated = (old == null ? 0 : old) + change;
+            ranking.add(new Ranking(name, updated));
+            if (old != null && old != updated) {
+                ranking.remove(new Ranking(name, old));
+            }
+            return updated;
+        });
+        rankingVersion.incrementAndGet();
+        if (journaling) {
+            changesToJournal.add(new Change(player, change));
+        }
+        return score;
+    }
+
+    @Override
+    public void run() {
+        List<Change> batch = new ArrayList<>();
+        ByteBuffer records = ByteBuffer.allocate(128 * 1024);
+        try {
+            while (true) {
+                batch.add(changesToJournal.take());
+                changesToJournal.drainTo(batch, MAX_BATCH - 1);
+                boolean ended = false;
+                records.clear();
+                for (Change change : batch) {
+                    if (change == END_OF_JOURNAL) {
+                        ended = true;
+                        continue;
+                    }
+                    byte[] name = change.player.getBytes(StandardCharsets.UTF_8);
+                    if (records.remaining() < Short.BYTES + name.length + Integer.BYTES) {
+                        write(records);
+                        records.clear();
+                    }
+                    records.putShort((short) name.length).put(name).putInt(change.change);
+                    durableScores.merge(change.player, change.change, Integer::sum);
+                    recordsSinceSnapshot++;
+                }
+                write(records);
+                // One fsync for the whole batch
+                journal.force(false);
+                batch.clear();
+                if (ended) {
+                    return;
+                }
+                if (recordsSinceSnapshot >= COMPACT_AFTER_RECORDS) {
+                    compact();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("The score journal failed, scores are no longer saved");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            // Shutting down
+        } finally {
+            // Nothing drains the queue any more, so it must stop growing
+            journaling = false;
+            changesToJournal.clear();
+        }
+    }
+
+    private void write(ByteBuffer records) throws IOException {
+        records.flip();
+        while (records.hasRemaining()) {
+            journal.write(records);
+        }
+    }
+
+    /**
+     * Writes every durable score to a new snapshot and starts the next journal. The snapshot
+     * says which journal it includes, so after a crash between the two steps the old journal
+     * is skipped instead of counted twice.
+     * */
+    private void compact() throws IOException {
+        Path partial = Paths.get(snapshotPath + ".tmp");
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream snapshot = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)));
+            snapshot.writeLong(generation);
+            snapshot.writeInt(durableScores.size());
+            for (Map.Entry<String, Integer> entry : durableScores.entrySet()) {
+                writeName(snapshot, entry.getKey());
+                snapshot.writeInt(entry.getValue());
+            }
+            snapshot.flush();
+            out.force(false);
+        }
+        Files.move(partial, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        startJournal(generation + 1);
+    }
+
+    private void startJournal(long generation) throws IOException {
+        this.generation = generation;
+        journal.truncate(0);
+        journal.position(0);
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(generation);
+        write(header);
+        journal.force(false);
+        recordsSinceSnapshot = 0;
+    }
+
+    private void recover() throws IOException {
+        long snapshotGeneration = 0;
+        if (Files.exists(snapshotPath)) {
+            try (DataInputStream snapshot = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+                snapshotGeneration = snapshot.readLong();
+                int noPlayers = snapshot.readInt();
+                for (int i = 0; i < noPlayers; i++) {
+                    durableScores.put(readName(snapshot), snapshot.readInt());
+                }
+            }
+        }
+        journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long journalGeneration = 0;
+        long validLength = 0;
+        DataInputStream records = new DataInputStream(new BufferedInputStream(Channels.newInputStream(journal)));
+        try {
+            journalGeneration = records.readLong();
+            validLength = Long.BYTES;
+            // A journal the snapshot already includes is not replayed
+            while (journalGeneration > snapshotGeneration) {
+                String player = readName(records);
+                int change = records.readInt();
+                durableScores.merge(player, change, Integer::sum);
+                recordsSinceSnapshot++;
+                validLength += Short.BYTES + player.getBytes(StandardCharsets.UTF_8).length + Integer.BYTES;
+            }
+        } catch (EOFException e) {
+            // The end of the journal, a record cut short by a crash is dropped
+        }
+        if (journalGeneration > snapshotGeneration) {
+            generation = journalGeneration;
+            journal.truncate(validLength);
+            journal.position(validLength);
+        } else {
+            startJournal(snapshotGeneration + 1);
+        }
+        scores.putAll(durableScores);
+        for (Map.Entry<String, Integer> entry : durableScores.entrySet()) {
+            ranking.add(new Ranking(entry.getKey(), entry.getValue()));
+        }
+        System.out.println("Recovered the scores of " + scores.size() + " players");
+    }
+
+    private static void writeName(DataOutputStream out, String player) throws IOException {
+        byte[] name = player.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(name.length);
+        out.write(name);
+    }
+
+    private static String readName(DataInputStream in) throws IOException {
+        byte[] name = new byte[in.readUnsignedShort()];
+        in.readFully(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private void close() {
+        changesToJournal.add(END_OF_JOURNAL);
+        try {
+            journalWriter.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            // Exiting anyway
+        }
+    }
+
+    /**
+     * A player's place in the ranking, ordered by score, highest first, then by name.
+     * */
+    public static class Ranking implements Comparable<Ranking> {
+        private final String player;
+        private final int score;
+
+        Ranking(String player, int score) {
+            this.player = player;
+            this.score = score;
+        }
+
+        public String getPlayer() {
+            return player;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        @Override
+        public int compareTo(Ranking other) {
+            int byScore = Integer.compare(other.score, score);
+            return byScore != 0 ? byScore : player.compareTo(other.player);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Ranking && compareTo((Ranking) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * player.hashCode() + score;
+        }
+    }
+
+    private static class Change {
+        private final String player;
+        private final int change;
+
+        Change(String player, int change) {
+            this.player = player;
+            this.change = change;
+        }
+    }
+}
@@ -1,45 +1,127 @@
 package se.kth.id1212.server.file;
 
-import java.util.*;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.io.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Gets and delivers word to the game.
+ * Gets and delivers word to the game. There is one per process, shared by every game. The
+ * dictionary is loaded on a thread of its own, and the file is watched afterwards so an
+ * updated word list is swapped in while games keep running. A running game keeps the word
+ * it drew.
+ *
+ * The path is read from the system property hangman.dictionary. A plain word list is
+ * compiled next to it, to <path>.dict, once, and compiled again only when the word list is
+ * newer than the compiled file. Replace a compiled dictionary by moving a new file
+ * over it, not by writing into it, since the old one stays mapped until it is unused.
  * */
 public class WordFetcher implements Runnable {
-    //Fixme: set relative path to project root
-    private final String pathString = "C:\\Users\\mikae\\OneDrive\\IdeaProjects\\HW1\\words.txt";
-    private final Path path = Paths.get(pathString);
-    private List<String> library = new ArrayList<>();
-    private boolean libraryReady = false;
+    public static final String DICTIONARY_PROPERTY = "hangman.dictionary";
+    private static final String DEFAULT_DICTIONARY = "words.dict";
+    private static final WordFetcher SHARED =
+            new WordFetcher(Paths.get(System.getProperty(DICTIONARY_PROPERTY, DEFAULT_DICTIONARY)));
+    private final Path path;
+    private final CompletableFuture<Void> libraryReady = new CompletableFuture<>();
+    private volatile Dictionary library;
 
-    public WordFetcher() {
-        new Thread(this).start();
+    private WordFetcher(Path path) {
+        this.path = path.toAbsolutePath();
+        Thread loader = new Thread(this, "dictionary");
+        loader.setDaemon(true);
+        loader.start();
     }
 
-    public String supplyWord() {
-        return drawWord();
-   }
+    public static WordFetcher shared() {
+        return SHARED;
+    }
 
-   private String drawWord() {
-       int index = new Random().nextInt(library.size());
-       return library.get(index);
-   }
+    /**
+     * @return a future that completes once the first dictionary is loaded, or exceptionally
+     * if the first load failed. A dictionary may still be loaded later, when the file changes.
+     * */
+    public CompletableFuture<Void> whenReady() {
+        return libraryReady;
+    }
+
+    /**
+     * @return the dictionary in use. It is replaced as a whole on a reload, and stays
+     * usable for as long as it is referenced.
+     * @throws IllegalStateException if no dictionary is loaded.
+     * */
+    public Dictionary getDictionary() {
+        return library();
+    }
+
+    private Dictionary library() {
+        Dictionary current = library;
+        if (current == null) {
+            throw new IllegalStateException("The library of words is not loaded");
+        }
+        return current;
+    }
 
     @Override
     public void run() {
         //Setup the library
-        try {
-            library = Files.readAllLines(path);
-            libraryReady = true;
+        load();
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (path.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    load();
+                }
+                key.reset();
+            }
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            // Shutting down
         }
     }
 
-    public boolean isLibraryReady() {
-        return libraryReady;
+    /**
+     * @return the dictionary compiled from the word list earlier, or null if there is none
+     * or the word list has changed since, then it must be compiled again.
+     * */
+    private Dictionary openCompiled(Path compiled) {
+        try {
+            if (Files.getLastModifiedTime(compiled).compareTo(Files.getLastModifiedTime(path)) <= 0) {
+                return null;
+            }
+            return Dictionary.open(compiled);
+        } catch (IOException e) {
+            // Missing, truncated or of an older format
+            return null;
+        }
+    }
+
+    private void load() {
+        try {
+            long start = System.nanoTime();
+            Dictionary loaded = Dictionary.open(path);
+            if (loaded == null) {
+                Path compiled = Paths.get(path + ".dict");
+                loaded = openCompiled(compiled);
+                if (loaded == null) {
+                    DictionaryCompiler.compile(path, compiled);
+                    loaded = Dictionary.open(compiled);
+                }
+            }
+            library = loaded;
+            libraryReady.complete(null);
+            System.out.println("Loaded " + loaded.size() + " words in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException | RuntimeException e) {
+            // The current library, if any, stays in use until the file is readable again
+            System.out.println("Could not load the dictionary " + path + ": " + e.getMessage());
+            libraryReady.completeExceptionally(e);
+        }
     }
 }
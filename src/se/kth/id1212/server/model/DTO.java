@@ -1,40 +1,77 @@
 package se.kth.id1212.server.model;
 
+/**
+ * A consistent snapshot of a game, taken from one value of its packed state. Nothing is
+ * rendered up front, the encoders read the primitive state directly.
+ * */
 public class DTO {
-    private boolean gameWon;
-    private String gameState;
-    private int noLetters;
-    private int remainingAttempts;
-    private String guessedLetters;
-
-    public DTO(Game game) {
-        this.gameState = game.stringify();
-        this.noLetters = game.getNoLetters();
-        this.remainingAttempts = game.getAttemptsLeft();
-        this.gameWon = game.allTrue();
-        this.guessedLetters = game.getGuessedLetters();
-        this.guessedLetters = guessedLetters.replace("[", "");
-        this.guessedLetters = guessedLetters.replace("]", "");
+    private final Game.Round round;
+    private final long state;
+    private final long version;
+    private final boolean endedRound;
+
+    DTO(Game.Round round, long state, long version) {
+        this(round, state, version, false);
     }
 
-    public boolean gameWon() {
-        return gameWon;
+    DTO(Game.Round round, long state, long version, boolean endedRound) {
+        this.round = round;
+        this.state = state;
+        this.version = version;
+        this.endedRound = endedRound;
     }
 
-    public String getGameState() {
-        return gameState;
+    /**
+     * @return true if this is the state right after the guess that won or lost the round.
+     * Exactly one guess per round ends it, a guess on a round that is already over doesn't.
+     * */
+    public boolean endedRound() {
+        return endedRound;
     }
 
-    public int getRemainingAttempts() {
-        return remainingAttempts;
+    /**
+     * @return a version of the game this snapshot is at least as new as.
+     * */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the round the snapshot is of, the same for every snapshot of one word and
+     * another one for the next word, even in the same game.
+     * */
+    public Object getRound() {
+        return round;
     }
 
-    public String getGuessedLetters() {
-        return guessedLetters;
+    public boolean gameWon() {
+        return round.isWon(state);
+    }
+
+    public int getRemainingAttempts() {
+        return Game.getAttemptsLeft(state);
     }
 
     public int getNoLetters() {
-        return noLetters;
+        return round.letters.length;
+    }
+
+    public boolean isRevealed(int position) {
+        return Game.isRevealed(state, position);
+    }
+
+    /**
+     * @return the letter at the position, whether it is revealed or not.
+     * */
+    public char getLetter(int position) {
+        return round.letters[position];
+    }
+
+    /**
+     * @return the guessed letters, bit n is set if 'A' + n has been guessed.
+     * */
+    public int getGuessedMask() {
+        return Game.getGuessedMask(state);
     }
 
 }
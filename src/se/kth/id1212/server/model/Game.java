@@ -1,19 +1,33 @@
 package se.kth.id1212.server.model;
 
+import se.kth.id1212.server.file.Dictionary;
 import se.kth.id1212.server.file.WordFetcher;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of a round is packed into one long, so a guess is a single compare-and-set
+ * and any number of players can guess at the same time without locks:
+ *     bits  0-25  guessed letters, bit n is set if 'A' + n has been guessed
+ *     bits 26-57  revealed positions, bit 26 + i is set if position i is revealed
+ *     bits 58-63  remaining attempts
+ * That limits words to 32 letters, see WordConstraints.
+ * */
 public class Game {
-    private char[] letters;
-    private List<Character> guessedLetters;
-    private boolean[] guessed;
-    private int attemptsLeft;
-    private int noLetters;
-    private WordFetcher wf = new WordFetcher();
-    private final String UNKNOWN_LETTER = "_";
+    static final int MAX_LETTERS = 32;
+    private static final int NO_ALPHABET_LETTERS = 26;
+    private static final int REVEALED_SHIFT = NO_ALPHABET_LETTERS;
+    private static final int ATTEMPTS_SHIFT = REVEALED_SHIFT + MAX_LETTERS;
+    private static final long GUESSED_MASK = (1L << NO_ALPHABET_LETTERS) - 1;
+    private static final long REVEALED_MASK = 0xFFFFFFFFL << REVEALED_SHIFT;
+    private volatile Round round = new Round(new char[0]);
+    private final AtomicLong version = new AtomicLong();
+    private final WordFetcher wf = WordFetcher.shared();
+    // Only touched by start(), and a game is never started twice at once
+    private final Map<WordConstraints, WordDeck> decks = new HashMap<>();
     private final String rules =
             "Guess a letter in the places of the word where it says _, " +
                     "if the guess is correct then _ will be replaced by the " +
@@ -24,105 +38,157 @@ public class Game {
                     "\nCollectively the players have the same number of attempts as there are " +
                     "letters in the word. ";
 
-    public void start() throws Exception {
-        if (!wf.isLibraryReady()) {
-            //Fixme: this must be thrown to the view
-            throw new Exception("The library of words is not done reading yet, try again in a while.");
+    /**
+     * Draws a word that matches the constraints and hasn't been played in this game before,
+     * once every matching word has been played they can all come again. Never waits for the
+     * dictionary, see WordFetcher.whenReady().
+     * @throws IllegalStateException if no dictionary is loaded.
+     * */
+    public void start(WordConstraints constraints) throws Exception {
+        Dictionary dictionary = wf.getDictionary();
+        WordDeck deck = decks.get(constraints);
+        if (deck == null || !deck.isOf(dictionary)) {
+            // A reloaded dictionary numbers its words differently, so every deck starts over
+            if (deck != null) {
+                decks.clear();
+            }
+            deck = new WordDeck(dictionary, constraints);
+            decks.put(constraints, deck);
+        }
+        String word = deck.deal();
+        if (word == null) {
+            throw new Exception("There is no word of " + constraints);
         }
-        String word = wf.supplyWord().toUpperCase();
-        guessedLetters = new ArrayList<>();
 
         //Prints the chosen word to the server side
         System.out.println("Word: " + word);
 
-        letters = word.toCharArray();
-        noLetters = letters.length;
-        guessed = new boolean[noLetters]; // initiated to false
-        attemptsLeft = noLetters;
+        startWith(word);
+    }
+
+    /**
+     * Starts a round of the given word, which must be uppercase and at most MAX_LETTERS long.
+     * */
+    void startWith(String word) {
+        round = new Round(word.toCharArray());
+        version.incrementAndGet();
     }
 
     //Fixme: return void
     public DTO makeGuess(String word) {
         char[] guess = word.toUpperCase().toCharArray();
-
         boolean singleLetter = (guess.length == 1);
-        if (singleLetter) {
-            if (guessedLetters.contains(guess[0])) {
-                return new DTO(this);
+        Round current = round;
+        long seen;
+        long state;
+        long newState;
+        do {
+            seen = version.get();
+            state = current.state.get();
+            if (current.isOver(state)) {
+                return new DTO(current, state, seen);
             }
-
-            guessedLetters.add(guess[0]);
-            if (!guessLetter(guess[0]))
-                attemptsLeft--;
-
-            return new DTO(this);
-        }
-        else {
-            if (!guessWord(guess))
-                attemptsLeft--;
-
-            return new DTO(this);
-        }
+            newState = singleLetter ? current.guessLetter(state, guess[0]) : current.guessWord(state, guess);
+            if (newState == state) {
+                return new DTO(current, state, seen);
+            }
+        } while (!current.state.compareAndSet(state, newState));
+        long changed = version.incrementAndGet();
+        // The new state is that version's own, unless another guess changed the game meanwhile
+        return new DTO(current, newState, changed == seen + 1 ? changed : seen, current.isOver(newState));
     }
 
-    private boolean guessWord(char[] guess) {
-        boolean correctGuess = false;
-        if (Arrays.equals(guess, letters)) {
-            correctGuess = true;
-            for (int i = 0; i < guessed.length; i++)
-                guessed[i] = true;
-        }
+    static boolean isRevealed(long state, int position) {
+        return (state & (1L << (REVEALED_SHIFT + position))) != 0;
+    }
 
-        return correctGuess;
+    static int getAttemptsLeft(long state) {
+        return (int) (state >>> ATTEMPTS_SHIFT);
     }
 
-    private boolean guessLetter(char letter) {
-        boolean correctGuess = false;
-        for (int i = 0; i < noLetters; i++)
-            if (letters[i] == letter) {
-                guessed[i] = true;
-                correctGuess = true;
-            }
+    static int getGuessedMask(long state) {
+        return (int) (state & GUESSED_MASK);
+    }
 
-        return correctGuess;
+    /**
+     * Rises after every change, a new round or a guess that changed the state.
+     * */
+    public long getVersion() {
+        return version.get();
     }
 
-    boolean allTrue() {
-        for (boolean value: guessed)
-            if (!value)  return false;
+    public DTO getDTO() {
+        // The version is read first, so the state is at least as new as the version says
+        long seen = version.get();
+        Round current = round;
+        return new DTO(current, current.state.get(), seen);
+    }
 
-        return true;
+    public String getRules() {
+        return rules;
     }
 
-    String stringify() {
-        StringBuilder r = new StringBuilder();
-        for (int i = 0; i < noLetters; i++) {
-            if (guessed[i])
-                r.append(String.valueOf(letters[i])).append(" ");
-            else
-                r.append(UNKNOWN_LETTER).append(" ");
+    /**
+     * One word and its packed state. A new round replaces the old one as a whole, so a guess
+     * can never be applied to the state of another word.
+     * */
+    static class Round {
+        final char[] letters;
+        private final int[] positionsOfLetter = new int[NO_ALPHABET_LETTERS];
+        private final long allRevealed;
+        final AtomicLong state;
+
+        Round(char[] letters) {
+            this.letters = letters;
+            long notLetters = 0;
+            for (int i = 0; i < letters.length; i++) {
+                int letter = letters[i] - 'A';
+                if (letter >= 0 && letter < NO_ALPHABET_LETTERS) {
+                    positionsOfLetter[letter] |= 1 << i;
+                } else {
+                    // Hyphens and the like can't be guessed, so they are shown from the start
+                    notLetters |= 1L << i;
+                }
+            }
+            long revealed = letters.length == 0 ? 0 : (0xFFFFFFFFL >>> (MAX_LETTERS - letters.length));
+            allRevealed = revealed << REVEALED_SHIFT;
+            state = new AtomicLong(((long) letters.length << ATTEMPTS_SHIFT) | (notLetters << REVEALED_SHIFT));
         }
 
-        return r.toString().trim();
-    }
-
-    int getNoLetters() {
-        return noLetters;
-    }
+        boolean isWon(long state) {
+            return letters.length > 0 && (state & REVEALED_MASK) == allRevealed;
+        }
 
-    int getAttemptsLeft() {
-        return attemptsLeft;
-    }
+        boolean isOver(long state) {
+            return isWon(state) || getAttemptsLeft(state) == 0;
+        }
 
-    String getGuessedLetters() {
-        return guessedLetters.toString();
-    }
+        private long guessLetter(long state, char guess) {
+            int letter = guess - 'A';
+            if (letter < 0 || letter >= NO_ALPHABET_LETTERS) {
+                return loseAttempt(state);
+            }
+            long guessedBit = 1L << letter;
+            if ((state & guessedBit) != 0) {
+                return state;
+            }
+            state |= guessedBit;
+            int positions = positionsOfLetter[letter];
+            if (positions == 0) {
+                return loseAttempt(state);
+            }
+            return state | ((positions & 0xFFFFFFFFL) << REVEALED_SHIFT);
+        }
 
-    public DTO getDTO() {
-        return new DTO(this);
-    }
+        private long guessWord(long state, char[] guess) {
+            if (Arrays.equals(guess, letters)) {
+                return state | allRevealed;
+            }
+            return loseAttempt(state);
+        }
 
-    public String getRules() {
-        return rules;
+        private static long loseAttempt(long state) {
+            return state - (1L << ATTEMPTS_SHIFT);
+        }
     }
 }
@@ -0,0 +1,81 @@
+package se.kth.id1212.server.model;
+
+import se.kth.id1212.server.file.Difficulty;
+
+/**
+ * What a player asked for when starting a game, e.g. START 5-8 HARD. Every part is optional:
+ * a length, or a range of lengths, and a difficulty, in any order.
+ * */
+public class WordConstraints {
+    public static final WordConstraints ANY = new WordConstraints(1, Game.MAX_LETTERS, null);
+    private final int minLength;
+    private final int maxLength;
+    private final Difficulty difficulty;
+
+    private WordConstraints(int minLength, int maxLength, Difficulty difficulty) {
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.difficulty = difficulty;
+    }
+
+    /**
+     * @throws IllegalArgumentException if an argument is neither a length nor a difficulty.
+     * */
+    public static WordConstraints parse(String... arguments) {
+        int minLength = ANY.minLength;
+        int maxLength = ANY.maxLength;
+        Difficulty difficulty = null;
+        for (String argument : arguments) {
+            if (!argument.isEmpty() && Character.isDigit(argument.charAt(0))) {
+                int dash = argument.indexOf('-');
+                try {
+                    minLength = Integer.parseInt(dash == -1 ? argument : argument.substring(0, dash));
+                    maxLength = dash == -1 ? minLength : Integer.parseInt(argument.substring(dash + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Not a word length: " + argument);
+                }
+            } else {
+                difficulty = Difficulty.valueOf(argument);
+            }
+        }
+        if (minLength < 1 || minLength > maxLength) {
+            throw new IllegalArgumentException("Not a word length: " + minLength + "-" + maxLength);
+        }
+        // A round can't hold longer words
+        return new WordConstraints(minLength, Math.min(maxLength, Game.MAX_LETTERS), difficulty);
+    }
+
+    int getMinLength() {
+        return minLength;
+    }
+
+    int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * @return the difficulty, or null for any.
+     * */
+    Difficulty getDifficulty() {
+        return difficulty;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof WordConstraints)) {
+            return false;
+        }
+        WordConstraints that = (WordConstraints) other;
+        return minLength == that.minLength && maxLength == that.maxLength && difficulty == that.difficulty;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * minLength + maxLength) + (difficulty == null ? 0 : difficulty.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return minLength + "-" + maxLength + (difficulty == null ? "" : " " + difficulty);
+    }
+}
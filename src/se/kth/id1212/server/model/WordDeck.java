@@ -0,0 +1,54 @@
+package se.kth.id1212.server.model;
+
+import se.kth.id1212.server.file.Dictionary;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The words of a dictionary that match one set of constraints, dealt in random order
+ * without repeats until every one of them has been dealt, then shuffled again. It is a
+ * Fisher-Yates shuffle done one draw at a time over the numbers of the matching words, so
+ * a deal is O(1). Only the positions a draw has swapped are stored, so a deck holds at
+ * most as many entries as it has dealt words, never the whole range.
+ * */
+class WordDeck {
+    private final Dictionary dictionary;
+    private final WordConstraints constraints;
+    private final int size;
+    // The number at a position that a draw has swapped, every other position holds its own
+    private final Map<Integer, Integer> swapped = new HashMap<>();
+    private int dealt;
+
+    WordDeck(Dictionary dictionary, WordConstraints constraints) {
+        this.dictionary = dictionary;
+        this.constraints = constraints;
+        this.size = dictionary.count(constraints.getMinLength(), constraints.getMaxLength(), constraints.getDifficulty());
+    }
+
+    boolean isOf(Dictionary dictionary) {
+        return this.dictionary == dictionary;
+    }
+
+    /**
+     * @return the next word, or null if no word matches the constraints.
+     * */
+    String deal() {
+        if (size == 0) {
+            return null;
+        }
+        if (dealt == size) {
+            dealt = 0;
+            swapped.clear();
+        }
+        int pick = dealt + ThreadLocalRandom.current().nextInt(size - dealt);
+        int number = swapped.getOrDefault(pick, pick);
+        swapped.put(pick, swapped.getOrDefault(dealt, dealt));
+        // The dealt position is never drawn again
+        swapped.remove(dealt);
+        dealt++;
+        return dictionary.matchingWord(constraints.getMinLength(), constraints.getMaxLength(),
+                constraints.getDifficulty(), number);
+    }
+}
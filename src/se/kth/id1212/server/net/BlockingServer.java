@@ -0,0 +1,172 @@
+package se.kth.id1212.server.net;
+
+import common.BinaryProtocol;
+import common.WireFormat;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A server engine that uses blocking I/O and a reader thread plus a writer thread per
+ * client, instead of selectors. The threads are virtual threads when the runtime has them,
+ * otherwise platform threads. Commands run directly on the reader thread of the client,
+ * with the same ClientHandler logic and the same rooms as the selector based Server.
+ * */
+class BlockingServer extends GameServer {
+    private static final int MAX_QUEUED_MESSAGES = 1024;
+    private static final ByteBuffer END_OF_QUEUE = ByteBuffer.allocate(0);
+    private final int portNo;
+    private final ThreadFactory threadFactory = clientThreadFactory();
+    private final Set<BlockingClient> clients = ConcurrentHashMap.newKeySet();
+
+    BlockingServer(int portNo) {
+        this.portNo = portNo;
+    }
+
+    void serve() {
+        try (ServerSocketChannel listeningSocketChannel = ServerSocketChannel.open()) {
+            listeningSocketChannel.bind(new InetSocketAddress(portNo));
+            getStats().register();
+            while (true) {
+                SocketChannel clientChannel = listeningSocketChannel.accept();
+                BlockingClient client = new BlockingClient(clientChannel);
+                clients.add(client);
+                threadFactory.newThread(client::receive).start();
+                threadFactory.newThread(client::transmit).start();
+            }
+        } catch (IOException e) {
+            System.out.println("Server-exception");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Commands run inline on the thread that posts them, without a pool. That is the thread
+     * that read them, except a START deferred until the dictionary is loaded, which is posted
+     * and may run on the loader thread. The mailbox still runs one command at a time, in the
+     * order they were posted.
+     * */
+    @Override
+    Executor getCommandExecutor() {
+        return Runnable::run;
+    }
+
+    private static ThreadFactory clientThreadFactory() {
+        try {
+            // Thread.ofVirtual().factory(), looked up reflectively so this builds on runtimes without it
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available, using platform threads");
+            return runnable -> {
+                Thread thread = new Thread(null, runnable, "client", 256 * 1024);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    private class BlockingClient implements Outbound {
+        private final ClientHandler handler;
+        private final BlockingQueue<ByteBuffer> messagesToTransmit = new ArrayBlockingQueue<>(MAX_QUEUED_MESSAGES);
+        private WireFormat format = WireFormat.TEXT;
+
+        BlockingClient(SocketChannel clientChannel) {
+            this.handler = new ClientHandler(BlockingServer.this, clientChannel, this);
+        }
+
+        private void receive() {
+            try {
+                while (true) {
+                    handler.receiveMessage();
+                }
+            } catch (IOException e) {
+                // The client is gone, or closed by us
+            } finally {
+                handler.disconnect();
+            }
+        }
+
+        private void transmit() {
+            ByteBuffer[] writeBatch = new ByteBuffer[64];
+            try {
+                while (true) {
+                    writeBatch[0] = messagesToTransmit.take();
+                    int batchSize = 1;
+                    while (batchSize < writeBatch.length &&
+                            (writeBatch[batchSize] = messagesToTransmit.poll()) != null) {
+                        batchSize++;
+                    }
+                    for (int i = 0; i < batchSize; i++) {
+                        if (writeBatch[i] == END_OF_QUEUE) {
+                            long droppedBytes = 0;
+                            for (int j = 0; j < i; j++) {
+                                droppedBytes += writeBatch[j].remaining();
+                            }
+                            getStats().queued(-i, -droppedBytes);
+                            return;
+                        }
+                    }
+                    // A blocking channel writes everything before returning
+                    long written = handler.transmitToClient(writeBatch, batchSize);
+                    getStats().queued(-batchSize, -written);
+                }
+            } catch (IOException | InterruptedException e) {
+                handler.disconnect();
+            }
+        }
+
+        @Override
+        public synchronized void send(Packet packet) {
+            queue(packet.encode(format));
+        }
+
+        @Override
+        public synchronized void useFormat(WireFormat format) {
+            if (format == WireFormat.BINARY && this.format != WireFormat.BINARY) {
+                queue(BinaryProtocol.handshake());
+            }
+            this.format = format;
+        }
+
+        private void queue(ByteBuffer msg) {
+            int size = msg.remaining();
+            if (messagesToTransmit.offer(msg)) {
+                getStats().queued(1, size);
+            } else {
+                System.out.println("Disconnecting slow client");
+                handler.disconnect();
+            }
+        }
+
+        /**
+         * Called by ClientHandler.disconnect, whichever thread noticed first.
+         * */
+        @Override
+        public void close() {
+            if (clients.remove(this)) {
+                handler.disconnect();
+                List<ByteBuffer> dropped = new ArrayList<>();
+                messagesToTransmit.drainTo(dropped);
+                long droppedBytes = 0;
+                for (ByteBuffer msg : dropped) {
+                    droppedBytes += msg.remaining();
+                }
+                getStats().queued(-dropped.size(), -droppedBytes);
+                messagesToTransmit.offer(END_OF_QUEUE);
+            }
+        }
+    }
+}
@@ -1,138 +1,271 @@
 package se.kth.id1212.server.net;
 
+import common.BinaryProtocol;
 import common.Command;
+import common.WireFormat;
+import se.kth.id1212.server.file.ScoreStore;
+import se.kth.id1212.server.file.WordFetcher;
 import se.kth.id1212.server.model.DTO;
+import se.kth.id1212.server.model.WordConstraints;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayDeque;
-import java.util.Queue;
-import java.util.concurrent.ForkJoinPool;
-import static common.Constants.*;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class ClientHandler implements Runnable {
-    private Server server = null;
+/**
+ * One player. Usually that is the whole connection, but a gateway can multiplex more players
+ * over its connection as sessions, each with a ClientHandler of its own. The handler of the
+ * connection reads and routes the requests of all its sessions.
+ * */
+public class ClientHandler {
+    private static final String ANONYMOUS = "ANONYMOUS";
+    private static final int MAX_NAME_LENGTH = 64;
+    private static final int MAX_SESSIONS = 1024;
+    // What clients older than rooms know, they drop the connection on any other command
+    private static final Set<Command> ORIGINAL_COMMANDS = EnumSet.of(Command.CONNECT, Command.DISCONNECT,
+            Command.USER, Command.START, Command.GUESS, Command.RULES, Command.STATE, Command.SCORE,
+            Command.RUNNING, Command.NOT_RUNNING, Command.HELP);
+    private GameServer server = null;
     private SocketChannel clientChannel;
-    private final ByteBuffer msgFromClient = ByteBuffer.allocateDirect(1024);
-    private Queue<String> msgToProcess = new ArrayDeque<>();
-    private String player = "ANONYMOUS";
-    private boolean connected;
-    private int score = 0;
+    private final Outbound outbound;
+    // Only the handler that owns the connection reads it, a session has none
+    private final FrameDecoder frameDecoder;
+    private final Mailbox<Request> msgToProcess;
+    private final ScoreStore scores = ScoreStore.shared();
+    private final WordFetcher words = WordFetcher.shared();
+    private volatile String player = ANONYMOUS;
+    private volatile Room room;
+    private final AtomicBoolean connected = new AtomicBoolean(true);
+    // Set once the client has shown it is newer than rooms, by the protocol or a command it used
+    private volatile boolean knowsNewCommands;
+    private final ServerStats stats;
+    // Each one is only written by the thread that reads, or the one that writes, this client
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    private volatile long framesIn;
+    private volatile long framesOut;
+    // Anonymous players keep their score for the connection only, named ones in the store
+    private final AtomicInteger anonymousScore = new AtomicInteger();
+    private final int session;
+    // The handler that owns the connection, this one unless it is a session on another's
+    private final ClientHandler connection;
+    // The other sessions on the connection, only kept by the handler that owns it
+    private final Map<Integer, ClientHandler> sessions;
 
-    ClientHandler(Server server, SocketChannel clientChannel) {
+    ClientHandler(GameServer server, SocketChannel clientChannel, Outbound outbound) {
+        this(server, clientChannel, outbound, BinaryProtocol.NO_SESSION, null);
+        stats.connectionOpened();
+    }
+
+    /**
+     * A session multiplexed over the connection of the given handler.
+     * */
+    private ClientHandler(ClientHandler connection, int session) {
+        this(connection.server, connection.clientChannel, new SessionOutbound(connection.outbound, session),
+                session, connection);
+        knowsNewCommands = true;
+    }
+
+    private ClientHandler(GameServer server, SocketChannel clientChannel, Outbound outbound, int session,
+                          ClientHandler connection) {
         this.server = server;
         this.clientChannel = clientChannel;
-        connected = true;
-    }
-
-    public void run() {
-        while (connected && !msgToProcess.isEmpty()) {
-            String rawInput;
-            while ((rawInput = msgToProcess.peek()) != null) {
-                String[] parts = rawInput.split(LENGTH_DELIMITER);
-                int lengthHeader = Integer.parseInt(parts[LENGTH_INDEX]);
-                msgToProcess.remove(); //Removes the peeked message
-
-                if (lengthHeader != parts[DATA_INDEX].length()) {
-                    try {
-                        throw new Exception("Length header didn't match");
-                    } catch (Exception e) {
-                        e.printStackTrace();
+        this.outbound = outbound;
+        this.session = session;
+        this.connection = connection == null ? this : connection;
+        this.frameDecoder = connection == null ? new FrameDecoder() : null;
+        this.sessions = connection == null ? new ConcurrentHashMap<>() : null;
+        this.room = server.joinRoom(RoomRegistry.LOBBY, this);
+        this.msgToProcess = new Mailbox<>(server.getCommandExecutor(), this::process);
+        this.stats = server.getStats();
+    }
+
+    private void process(Request request) {
+        if (!connected.get()) {
+            return;
+        }
+        Command cmd = request.getCommand();
+        if (cmd == null) {
+            System.out.println("The input was not known to the ClientHandler");
+            if (request.isTagged()) {
+                reply(request, Packet.event(Command.ERROR, "Unknown command"));
+            }
+            return;
+        }
+        if (!knowsNewCommands && (request.isTagged() || !ORIGINAL_COMMANDS.contains(cmd))) {
+            knowsNewCommands = true;
+        }
+        if (cmd == Command.START && !words.whenReady().isDone()) {
+            // Never waits on a worker, the START comes back through the mailbox once the first
+            // load is over, and fails right away if that left no words. Only the re-posted copy
+            // is timed, from when it is posted, so the load is not counted as START latency
+            words.whenReady().whenComplete((loaded, failure) -> msgToProcess.post(request.repost()));
+            return;
+        }
+        try {
+            switch (cmd) {
+                case CONNECT:
+                    // Opened a session, see route
+                    acknowledge(request, Packet.event(Command.CONNECT));
+                    break;
+                case START:
+                    if (!room.startGame(WordConstraints.parse(request.getArguments()))) {
+                        transmitDirectlyToClient(Packet.event(Command.RUNNING));
+                        reply(request, getStateOutput());
+                        break;
+                    }
+                    server.broadcast(room, Packet.event(Command.START, player));
+                    Packet started = getStateOutput();
+                    server.broadcast(room, started);
+                    acknowledge(request, started);
+                    break;
+                case DISCONNECT:
+                    disconnect();
+                    server.broadcast(room, Packet.event(Command.DISCONNECT, player));
+                    break;
+                case GUESS:
+                    if (!room.isGameRunning()) {
+                        reply(request, Packet.event(Command.NOT_RUNNING));
+                        break;
+                    }
+                    DTO dto = room.guess(parseLiteral(request));
+
+                    // Only the guess that ended the round scores, not one that found it over, like
+                    // a guess on the old round while a new one is being started
+                    if (dto.endedRound() && dto.gameWon()) {
+                        server.incrementAllClientsScore(room);
+                    } else if (dto.endedRound()) {
+                        server.decrementAllClientsScore(room);
+                    }
+                    server.broadcast(room, Packet.event(Command.GUESS, player, parseLiteral(request)));
+                    Packet state = room.publishState(Packet.state(dto));
+                    server.broadcast(room, state);
+                    acknowledge(request, state);
+                    break;
+                case USER:
+                    String playerOld = player;
+                    String name = parseLiteral(request);
+                    if (name.length() > MAX_NAME_LENGTH) {
+                        throw new IllegalArgumentException("Names are at most " + MAX_NAME_LENGTH + " letters");
+                    }
+                    player = name;
+
+                    Packet renamed = Packet.event(Command.USER, playerOld, player);
+                    server.broadcast(room, renamed);
+                    acknowledge(request, renamed);
+                    break;
+                case JOIN:
+                    Room roomOld = room;
+                    Room roomNew = server.joinRoom(parseLiteral(request), this);
+                    room = roomNew;
+                    if (!connected.get()) {
+                        // Disconnected meanwhile, and may have left the old room only
+                        server.leaveRoom(roomNew, this);
                     }
-                }
-                String input = parts[DATA_INDEX].toUpperCase();
-                Command cmd = Command.valueOf(parseCommand(input));
-                try {
-                    switch (cmd) {
-                        case START:
-                            if (server.isGameRunning()) {
-                                transmitDirectlyToClient(Command.RUNNING.toString());
-                                transmitDirectlyToClient(getStateOutput());
-                                break;
-                            }
-                            server.startGame();
-                            server.broadcast(Command.START.toString() + DATA_DELIMITER + player + END_OF_MSG_DELIMITER);
-                            server.broadcast(getStateOutput());
-                            break;
-                        case DISCONNECT:
-                            disconnect();
-                            server.broadcast(Command.DISCONNECT.toString() + DATA_DELIMITER + player + END_OF_MSG_DELIMITER);
-                            break;
-                        case GUESS:
-                            if (!server.isGameRunning()) {
-                                transmitDirectlyToClient(Command.NOT_RUNNING.toString());
-                            }
-                           server.guess(parseLiteral(input));
-                            DTO dto = server.getGameStateDTO();
-
-                            if (dto.gameWon()) {
-                                server.incrementAllClientsScore();
-
-                            } else if (!dto.gameWon() & dto.getRemainingAttempts() == 0) {
-                                server.decrementAllClientsScore();
-                            }
-                            server.broadcast(Command.GUESS.toString() +
-                                    DATA_DELIMITER + player +
-                                    DATA_DELIMITER +
-                                    parseLiteral(input) +
-                                    END_OF_MSG_DELIMITER);
-                            server.broadcast(getStateOutput());
-                            break;
-                        case USER:
-                            String playerOld = player;
-                            player = parseLiteral(input);
-
-                            server.broadcast(Command.USER.toString() +
-                                    DATA_DELIMITER + playerOld +
-                                    DATA_DELIMITER + player +
-                                    END_OF_MSG_DELIMITER);
-                            break;
-                        case SCORE:
-                            transmitDirectlyToClient(Command.SCORE.toString() + DATA_DELIMITER + score);
-                            break;
-                        case RULES:
-                            transmitDirectlyToClient(Command.RULES.toString() + DATA_DELIMITER + server.getRules());
-                            break;
-                        default:
-                            System.out.println("The input was not known to the ClientHandler");
+                    if (roomOld != roomNew) {
+                        // Joined first, so a name that is refused leaves the player where it was
+                        server.leaveRoom(roomOld, this);
+                        server.broadcast(roomOld, Packet.event(Command.DISCONNECT, player));
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+                    Packet joined = Packet.event(Command.JOIN, player, room.getId());
+                    server.broadcast(room, joined);
+                    acknowledge(request, joined);
+                    break;
+                case SCORE:
+                    reply(request, Packet.event(Command.SCORE, Integer.toString(getScore())));
+                    break;
+                case LEADERBOARD:
+                    int size = request.getLiteral() == null ? Leaderboard.DEFAULT_SIZE : Integer.parseInt(request.getLiteral());
+                    reply(request, server.getLeaderboard().top(size));
+                    break;
+                case STATS:
+                    if (!stats.isAdmin(player)) {
+                        // An expected denial, answered even when untagged and not logged
+                        reply(request, Packet.event(Command.ERROR, player + " may not see the stats"));
+                        break;
+                    }
+                    String[] report = stats.report();
+                    String[] lines = Arrays.copyOf(report, report.length + 1);
+                    lines[report.length] = "this connection: in=" + connection.bytesIn + "B/" + connection.framesIn +
+                            " out=" + connection.bytesOut + "B/" + connection.framesOut;
+                    reply(request, Packet.event(Command.STATS, lines));
+                    break;
+                case RULES:
+                    reply(request, Packet.event(Command.RULES, room.getRules()));
+                    break;
+                default:
+                    System.out.println("The input was not known to the ClientHandler");
+                    if (request.isTagged()) {
+                        reply(request, Packet.event(Command.ERROR, "Unknown command"));
+                    }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (request.isTagged()) {
+                reply(request, Packet.event(Command.ERROR, String.valueOf(e.getMessage())));
             }
+        } finally {
+            stats.recordCommand(cmd, System.nanoTime() - request.getReceivedNanos());
         }
     }
 
-    private String parseCommand(String input) {
-        return input.split(" ")[0];
+    private String parseLiteral(Request request) {
+        if (request.getLiteral() == null) {
+            throw new IllegalArgumentException("Missing literal for " + request.getCommand());
+        }
+        return request.getLiteral();
     }
 
-    private String parseLiteral(String input) {
-        return input.split(" ")[1];
+    private Packet getStateOutput() {
+        return room.getStatePacket();
     }
 
-    private String getStateOutput() {
-        DTO dto = server.getGameStateDTO();
-        return Command.STATE.toString() +
-                DATA_DELIMITER + dto.getGameState() +
-                DATA_DELIMITER + dto.getRemainingAttempts() +
-                DATA_DELIMITER + dto.gameWon() +
-                DATA_DELIMITER + dto.getGuessedLetters() +
-                DATA_DELIMITER + dto.getNoLetters() +
-                END_OF_MSG_DELIMITER;
+    private void transmitDirectlyToClient(Packet update) {
+        outbound.send(update);
     }
 
-    private void transmitDirectlyToClient(String update) throws IOException {
-        transmitToClient(ByteBuffer.wrap(update.getBytes()));
+    /**
+     * Answers the request, tagged with its sequence number if the client tagged it.
+     * */
+    private void reply(Request request, Packet answer) {
+        transmitDirectlyToClient(request.isTagged() ? Packet.tagged(request.getSequence(), answer) : answer);
     }
 
-    void transmitToClient(ByteBuffer msg) throws IOException {
-        clientChannel.write(msg);
-        if (msg.hasRemaining()) {
-            throw new IOException("Message still has remaining packets after sent");
+    /**
+     * Answers a TAGGED request with what the room was sent. An untagged one needs no
+     * answer, the client got it from the room.
+     * */
+    private void acknowledge(Request request, Packet answer) {
+        if (request.isTagged()) {
+            transmitDirectlyToClient(Packet.tagged(request.getSequence(), answer));
         }
     }
 
+    /**
+     * Writes the messages with one gathering write.
+     * @return the number of bytes written, which may be less than what the messages hold.
+     * */
+    long transmitToClient(ByteBuffer[] msgs, int length) throws IOException {
+        long written = clientChannel.write(msgs, 0, length);
+        int frames = 0;
+        for (int i = 0; i < length && !msgs[i].hasRemaining(); i++) {
+            // Emptied STATEs were never sent
+            if (msgs[i].limit() > 0) {
+                frames++;
+            }
+        }
+        bytesOut += written;
+        framesOut += frames;
+        stats.transmitted(written, frames);
+        return written;
+    }
+
     /**
      * Used to inspect buffers in debug mode.
      * */
@@ -143,40 +276,115 @@ public class ClientHandler implements Runnable {
         String s = new String(bytes);
     }
 
-    private void disconnect() {
+    void disconnect() {
+        if (!connected.compareAndSet(true, false)) {
+            return;
+        }
+        if (connection != this) {
+            // Only the session ends, the connection carries on with the others
+            server.leaveRoom(room, this);
+            connection.sessions.remove(session, this);
+            return;
+        }
+        stats.connectionClosed();
         try {
             clientChannel.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        connected = false;
+        server.leaveRoom(room, this);
+        outbound.close();
+        for (ClientHandler other : sessions.values()) {
+            other.disconnect();
+        }
+    }
+
+    /**
+     * Queues a packet for this client, from any thread. An event older clients don't know,
+     * like JOIN, is only sent once the client has shown it knows the new commands, see
+     * ORIGINAL_COMMANDS.
+     * */
+    void send(Packet packet) {
+        if (!knowsNewCommands && !ORIGINAL_COMMANDS.contains(packet.getCommand())) {
+            return;
+        }
+        outbound.send(packet);
     }
 
     void incrementScore() {
-        score++;
+        changeScore(1);
     }
 
     void decrementScore() {
-        score--;
+        changeScore(-1);
+    }
+
+    /**
+     * Called from whichever thread finished the game, the store never blocks it.
+     * */
+    private void changeScore(int change) {
+        String name = player;
+        if (ANONYMOUS.equals(name)) {
+            anonymousScore.addAndGet(change);
+        } else {
+            scores.addScore(name, change);
+        }
+    }
+
+    private int getScore() {
+        String name = player;
+        return ANONYMOUS.equals(name) ? anonymousScore.get() : scores.getScore(name);
+    }
+
+    /**
+     * Hands a request to the session it belongs to, on the thread that reads the connection.
+     * A session is opened by its first CONNECT, and every session processes its requests in
+     * order, in parallel with the others.
+     * */
+    private void route(Request request) {
+        int id = request.getSession();
+        if (id == BinaryProtocol.NO_SESSION) {
+            msgToProcess.post(request);
+            return;
+        }
+        ClientHandler target = sessions.get(id);
+        if (target == null && request.getCommand() == Command.CONNECT && sessions.size() < MAX_SESSIONS) {
+            target = new ClientHandler(this, id);
+            sessions.put(id, target);
+            if (!connected.get()) {
+                // Disconnected meanwhile, and may have missed the new session
+                target.disconnect();
+            }
+        }
+        if (target == null) {
+            System.out.println("There is no session " + id + " on the connection");
+            if (request.isTagged()) {
+                Packet refused = Packet.event(Command.ERROR, "There is no session " + id);
+                outbound.send(Packet.session(id, Packet.tagged(request.getSequence(), refused), null));
+            }
+            return;
+        }
+        target.msgToProcess.post(request);
     }
 
     public void receiveMessage() throws IOException {
-        msgFromClient.clear();
-        int numReadBytes = clientChannel.read(msgFromClient);
+        int numReadBytes = frameDecoder.readFrom(clientChannel);
         //The number of bytes read, possibly zero, or -1 if the channel has reached end-of-stream
         if (numReadBytes == -1) {
             throw new IOException("ClientInterface has closed connection.");
         }
-        String receiveMsg = extractMessageFromBuffer();
-        msgToProcess.add(receiveMsg);
-        ForkJoinPool.commonPool().execute(this); //IO operation - starts run()
-    }
-
-    private String extractMessageFromBuffer() {
-        msgFromClient.flip();
-        byte[] bytes = new byte[msgFromClient.remaining()];
-        msgFromClient.get(bytes);
-        return new String(bytes);
+        WireFormat formatBefore = frameDecoder.getFormat();
+        int frames = frameDecoder.decode(this::route);
+        bytesIn += numReadBytes;
+        framesIn += frames;
+        stats.received(numReadBytes, frames);
+        if (formatBefore == null && frameDecoder.getFormat() != null) {
+            if (frameDecoder.getFormat() == WireFormat.BINARY) {
+                // Only clients newer than rooms talk binary
+                knowsNewCommands = true;
+            }
+            outbound.useFormat(frameDecoder.getFormat());
+        }
     }
 }
 
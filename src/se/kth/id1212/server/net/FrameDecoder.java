@@ -0,0 +1,251 @@
+package se.kth.id1212.server.net;
+
+import common.BinaryProtocol;
+import common.Command;
+import common.WireFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Turns the byte stream from one client into requests. A text frame is "length#data" where
+ * length is the number of bytes in data, binary frames are described in BinaryProtocol.
+ * The first byte on the connection decides which of the two the client speaks. A request
+ * may be tagged, "TAGGED sequence command arguments" in text, and belong to a session,
+ * "SESSION id TAGGED sequence command arguments". See BinaryProtocol for binary.
+ * Reads may hold part of a frame or several frames, so the bytes are kept between reads
+ * until a whole frame has arrived. The buffer grows when a frame doesn't fit in it.
+ * */
+class FrameDecoder {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_FRAME_LENGTH = BinaryProtocol.MAX_FRAME_LENGTH;
+    private static final int MAX_HEADER_DIGITS = 7;
+    private static final int MAX_NUMBER_DIGITS = 9;
+    private static final int NOT_A_NUMBER = -1;
+    private static final byte LENGTH_DELIMITER = '#';
+    private static final byte WORD_DELIMITER = ' ';
+    private static final Command[] COMMANDS = Command.values();
+    private static final byte[][] COMMAND_NAMES = new byte[COMMANDS.length][];
+
+    static {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            COMMAND_NAMES[i] = COMMANDS[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+    private WireFormat format = null;
+
+    /**
+     * Reads whatever the channel has available into the buffer.
+     * @return the number of bytes read, or -1 if the channel has reached end-of-stream.
+     * */
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        if (!buffer.hasRemaining()) {
+            grow();
+        }
+        return channel.read(buffer);
+    }
+
+    /**
+     * Hands every complete frame in the buffer to the consumer, and keeps what is left
+     * of an incomplete frame for the next read.
+     * @return the number of frames decoded.
+     * */
+    int decode(Consumer<Request> consumer) throws IOException {
+        int noFrames = 0;
+        buffer.flip();
+        try {
+            if (format == null && !detectFormat()) {
+                return 0;
+            }
+            while (format == WireFormat.BINARY ? decodeBinaryFrame(consumer) : decodeFrame(consumer)) {
+                noFrames++;
+            }
+        } finally {
+            buffer.compact();
+        }
+        return noFrames;
+    }
+
+    /**
+     * @return the format the client speaks, or null if nothing has been received yet.
+     * */
+    WireFormat getFormat() {
+        return format;
+    }
+
+    private boolean detectFormat() throws IOException {
+        if (!buffer.hasRemaining()) {
+            return false;
+        }
+        if (buffer.get(buffer.position()) != BinaryProtocol.MAGIC) {
+            format = WireFormat.TEXT;
+            return true;
+        }
+        if (buffer.remaining() < BinaryProtocol.HANDSHAKE_LENGTH) {
+            return false;
+        }
+        buffer.get();
+        byte version = buffer.get();
+        if (version != BinaryProtocol.VERSION) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+        format = WireFormat.BINARY;
+        return true;
+    }
+
+    private boolean decodeBinaryFrame(Consumer<Request> consumer) throws IOException {
+        ByteBuffer frame = BinaryProtocol.nextFrame(buffer);
+        if (frame == null) {
+            return false;
+        }
+        Command cmd = Command.fromOpcode(frame.get());
+        int session = BinaryProtocol.NO_SESSION;
+        if (cmd == Command.SESSION) {
+            session = BinaryProtocol.getVarint(frame);
+            cmd = frame.hasRemaining() ? Command.fromOpcode(frame.get()) : null;
+        }
+        int sequence = Request.UNTAGGED;
+        if (cmd == Command.TAGGED) {
+            sequence = BinaryProtocol.getVarint(frame);
+            cmd = frame.hasRemaining() ? Command.fromOpcode(frame.get()) : null;
+        }
+        List<String> arguments = new ArrayList<>(1);
+        while (frame.hasRemaining()) {
+            arguments.add(BinaryProtocol.getString(frame).toUpperCase());
+        }
+        consumer.accept(new Request(cmd, arguments.toArray(new String[0]), sequence, session));
+        return true;
+    }
+
+    private boolean decodeFrame(Consumer<Request> consumer) throws IOException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int length = 0;
+        int delimiterIndex = -1;
+        for (int i = start; i < limit; i++) {
+            byte b = buffer.get(i);
+            if (b == LENGTH_DELIMITER) {
+                delimiterIndex = i;
+                break;
+            }
+            if (b < '0' || b > '9' || i - start >= MAX_HEADER_DIGITS) {
+                throw new IOException("Malformed length header");
+            }
+            length = length * 10 + (b - '0');
+        }
+        if (delimiterIndex == -1) {
+            return false;
+        }
+        if (delimiterIndex == start || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Malformed length header");
+        }
+        int dataStart = delimiterIndex + 1;
+        if (limit - dataStart < length) {
+            return false;
+        }
+        consumer.accept(parseRequest(dataStart, dataStart + length));
+        buffer.position(dataStart + length);
+        return true;
+    }
+
+    private Request parseRequest(int from, int to) {
+        int commandEnd = indexOf(WORD_DELIMITER, from, to);
+        Command cmd = matchCommand(from, commandEnd);
+        int session = BinaryProtocol.NO_SESSION;
+        if (cmd == Command.SESSION) {
+            int sessionEnd = indexOf(WORD_DELIMITER, Math.min(commandEnd + 1, to), to);
+            session = parseNumber(commandEnd + 1, sessionEnd);
+            from = Math.min(sessionEnd + 1, to);
+            commandEnd = indexOf(WORD_DELIMITER, from, to);
+            cmd = session == NOT_A_NUMBER ? null : matchCommand(from, commandEnd);
+        }
+        int sequence = Request.UNTAGGED;
+        if (cmd == Command.TAGGED) {
+            int sequenceEnd = indexOf(WORD_DELIMITER, Math.min(commandEnd + 1, to), to);
+            sequence = parseNumber(commandEnd + 1, sequenceEnd);
+            from = Math.min(sequenceEnd + 1, to);
+            commandEnd = indexOf(WORD_DELIMITER, from, to);
+            cmd = sequence == NOT_A_NUMBER ? null : matchCommand(from, commandEnd);
+        }
+        List<String> arguments = new ArrayList<>(1);
+        int argumentEnd = commandEnd;
+        while (argumentEnd < to) {
+            int argumentStart = argumentEnd + 1;
+            argumentEnd = indexOf(WORD_DELIMITER, argumentStart, to);
+            if (argumentEnd > argumentStart) {
+                arguments.add(decodeString(argumentStart, argumentEnd).toUpperCase());
+            }
+        }
+        return new Request(cmd, arguments.toArray(new String[0]), sequence, session);
+    }
+
+    /**
+     * @return the decimal number, or NOT_A_NUMBER if it isn't one.
+     * */
+    private int parseNumber(int from, int to) {
+        if (from >= to || to - from > MAX_NUMBER_DIGITS) {
+            return NOT_A_NUMBER;
+        }
+        int number = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return NOT_A_NUMBER;
+            }
+            number = number * 10 + (b - '0');
+        }
+        return number;
+    }
+
+    private int indexOf(byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private Command matchCommand(int from, int to) {
+        for (int c = 0; c < COMMANDS.length; c++) {
+            byte[] name = COMMAND_NAMES[c];
+            if (name.length != to - from) {
+                continue;
+            }
+            int i = 0;
+            while (i < name.length && upperCase(buffer.get(from + i)) == name[i]) {
+                i++;
+            }
+            if (i == name.length) {
+                return COMMANDS[c];
+            }
+        }
+        return null;
+    }
+
+    private static byte upperCase(byte b) {
+        return (b >= 'a' && b <= 'z') ? (byte) (b - ('a' - 'A')) : b;
+    }
+
+    private String decodeString(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void grow() throws IOException {
+        if (buffer.capacity() > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame exceeds " + MAX_FRAME_LENGTH + " bytes");
+        }
+        ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+}
@@ -0,0 +1,79 @@
+package se.kth.id1212.server.net;
+
+import se.kth.id1212.server.file.ScoreStore;
+import se.kth.id1212.server.file.WordFetcher;
+import java.util.concurrent.Executor;
+
+/**
+ * What a ClientHandler needs from the server it runs in, whichever engine that server uses
+ * for its connections. The rooms are shared by all engines.
+ * */
+abstract class GameServer {
+    private final RoomRegistry rooms = new RoomRegistry();
+    private final Leaderboard leaderboard = new Leaderboard(ScoreStore.shared());
+    private final ServerStats stats = new ServerStats();
+
+    GameServer() {
+        // Starts loading the words, so they are ready before the first START
+        WordFetcher.shared();
+    }
+
+    /**
+     * Queues a packet for every client in the given room. Safe from any thread, and costs
+     * as much as the room has members.
+     * */
+    void broadcast(Room room, Packet packet) {
+        for (ClientHandler member : room.getMembers()) {
+            member.send(packet);
+        }
+    }
+
+    void incrementAllClientsScore(Room room) {
+        if (!room.stopGame()) {
+            return;
+        }
+        for (ClientHandler member : room.getMembers()) {
+            member.incrementScore();
+        }
+    }
+
+    void decrementAllClientsScore(Room room) {
+        if (!room.stopGame()) {
+            return;
+        }
+        for (ClientHandler member : room.getMembers()) {
+            member.decrementScore();
+        }
+    }
+
+    /**
+     * @return the executor that client commands run on.
+     * */
+    abstract Executor getCommandExecutor();
+
+    Room lobby() {
+        return rooms.lobby();
+    }
+
+    /**
+     * @return the room the member joined, see RoomRegistry.join.
+     * */
+    Room joinRoom(String id, ClientHandler member) {
+        return rooms.join(id, member);
+    }
+
+    void leaveRoom(Room room, ClientHandler member) {
+        rooms.leave(room, member);
+    }
+
+    Leaderboard getLeaderboard() {
+        return leaderboard;
+    }
+
+    /**
+     * The stats are only shown over JMX by the engine that serves, see ServerStats.register().
+     * */
+    ServerStats getStats() {
+        return stats;
+    }
+}
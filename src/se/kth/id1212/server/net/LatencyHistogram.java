@@ -0,0 +1,71 @@
+package se.kth.id1212.server.net;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in power of two buckets of nanoseconds. Recording is a few LongAdder
+ * increments, so many threads can record at once without contending, and percentiles are
+ * read as the upper bound of the bucket they fall in, at most twice the real value and never
+ * more than the max.
+ * */
+class LatencyHistogram {
+    private static final int NO_BUCKETS = 64;
+    private final LongAdder[] buckets = new LongAdder[NO_BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < NO_BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        // Bucket i holds [2^i, 2^(i + 1)), bucket 0 also holds 0
+        buckets[63 - Long.numberOfLeadingZeros(Math.max(nanos, 1))].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * */
+    long getPercentileNanos(double percentile) {
+        long[] counts = new long[NO_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NO_BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < NO_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                long upperBound = i == NO_BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                return Math.min(upperBound, maxNanos.get());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the count, mean, p50, p99, p999 and max, in microseconds.
+     * */
+    String summary() {
+        long n = getCount();
+        return "count=" + n +
+                " mean=" + (n == 0 ? 0 : totalNanos.sum() / n / 1000) + "us" +
+                " p50=" + getPercentileNanos(50) / 1000 + "us" +
+                " p99=" + getPercentileNanos(99) / 1000 + "us" +
+                " p999=" + getPercentileNanos(99.9) / 1000 + "us" +
+                " max=" + maxNanos.get() / 1000 + "us";
+    }
+}
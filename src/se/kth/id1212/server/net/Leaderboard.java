@@ -0,0 +1,60 @@
+package se.kth.id1212.server.net;
+
+import common.Command;
+import se.kth.id1212.server.file.ScoreStore;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The rendered top players, shared by every client that asks until a score changes. The
+ * store keeps the ranking sorted, so rendering the top n never sorts all players.
+ * */
+class Leaderboard {
+    static final int DEFAULT_SIZE = 10;
+    static final int MAX_SIZE = 100;
+    private final ScoreStore scores;
+    private final AtomicReference<Rendered> rendered = new AtomicReference<>(new Rendered(-1));
+
+    Leaderboard(ScoreStore scores) {
+        this.scores = scores;
+    }
+
+    /**
+     * @return a LEADERBOARD packet with the name and score of each of the best n players.
+     * */
+    Packet top(int n) {
+        long version = scores.getRankingVersion();
+        Rendered current = rendered.get();
+        while (current.version < version) {
+            Rendered fresh = new Rendered(version);
+            if (rendered.compareAndSet(current, fresh)) {
+                current = fresh;
+                break;
+            }
+            current = rendered.get();
+        }
+        // Rendered after the version was read, so it is never older than the version it is kept under
+        return current.packets.computeIfAbsent(Math.max(1, Math.min(n, MAX_SIZE)), this::render);
+    }
+
+    private Packet render(int n) {
+        List<ScoreStore.Ranking> top = scores.getTop(n);
+        String[] fields = new String[2 * top.size()];
+        for (int i = 0; i < top.size(); i++) {
+            fields[2 * i] = top.get(i).getPlayer();
+            fields[2 * i + 1] = Integer.toString(top.get(i).getScore());
+        }
+        return Packet.event(Command.LEADERBOARD, fields);
+    }
+
+    private static class Rendered {
+        private final long version;
+        private final ConcurrentMap<Integer, Packet> packets = new ConcurrentHashMap<>();
+
+        Rendered(long version) {
+            this.version = version;
+        }
+    }
+}
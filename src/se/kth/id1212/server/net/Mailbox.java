@@ -0,0 +1,55 @@
+package se.kth.id1212.server.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Delivers messages to a receiver one at a time, in the order they were posted. Any thread
+ * may post, and the mailbox is drained by at most one executor thread at a time, so the
+ * receiver never needs locks of its own.
+ * */
+class Mailbox<T> implements Runnable {
+    private static final int MAX_MESSAGES_PER_RUN = 64;
+    private final Queue<T> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Executor executor;
+    private final Consumer<T> receiver;
+
+    Mailbox(Executor executor, Consumer<T> receiver) {
+        this.executor = executor;
+        this.receiver = receiver;
+    }
+
+    void post(T message) {
+        messages.add(message);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * Drains a limited number of messages, so one busy mailbox can't starve the others
+     * that share the executor, and reschedules itself if more remain.
+     * */
+    @Override
+    public void run() {
+        try {
+            T message;
+            for (int i = 0; i < MAX_MESSAGES_PER_RUN && (message = messages.poll()) != null; i++) {
+                receiver.accept(message);
+            }
+        } finally {
+            scheduled.set(false);
+            if (!messages.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package se.kth.id1212.server.net;
+
+import common.WireFormat;
+
+/**
+ * The way out to one client. Packets are encoded in whatever format the client negotiated.
+ * */
+interface Outbound {
+    /**
+     * Queues a packet for the client. May be called from any thread.
+     * */
+    void send(Packet packet);
+
+    /**
+     * Switches the client to another wire format. Packets sent before the switch keep
+     * their old encoding, packets sent after it use the new one.
+     * */
+    void useFormat(WireFormat format);
+
+    /**
+     * Drops whatever is still queued, the client is gone. Called by ClientHandler.disconnect.
+     * */
+    void close();
+}
@@ -0,0 +1,290 @@
+package se.kth.id1212.server.net;
+
+import common.BinaryProtocol;
+import common.Command;
+import common.WireFormat;
+import se.kth.id1212.server.model.DTO;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import static common.Constants.*;
+
+/**
+ * A message from the server to one or more clients. It is kept in structured form so it
+ * can be encoded in the wire format each client negotiated. Each format is encoded at most
+ * once, and every recipient gets its own view of the same read-only bytes.
+ * */
+class Packet {
+    private static final int NO_ALPHABET_LETTERS = 26;
+    // Room for a varint of any frame length
+    private static final int MAX_LENGTH_HEADER = 5;
+    private static final byte DATA_SEPARATOR = (byte) DATA_DELIMITER.charAt(0);
+    private static final byte END_OF_MSG = (byte) END_OF_MSG_DELIMITER.charAt(0);
+    // Big enough for a STATE of a 32 letter word in either format
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(512));
+    private final Command cmd;
+    private final String[] fields;
+    private final DTO state;
+    private final Object conflationKey;
+    // A TAGGED or SESSION packet wraps another one, the number is its sequence or session
+    private final int number;
+    private final Packet inner;
+    private volatile ByteBuffer text;
+    private volatile ByteBuffer binary;
+
+    private Packet(Command cmd, String[] fields, DTO state, Object conflationKey) {
+        this.cmd = cmd;
+        this.fields = fields;
+        this.state = state;
+        this.conflationKey = conflationKey;
+        this.number = 0;
+        this.inner = null;
+    }
+
+    private Packet(Command wrapper, int number, Packet inner, Object conflationKey) {
+        this.cmd = wrapper;
+        this.fields = null;
+        this.state = null;
+        this.conflationKey = conflationKey;
+        this.number = number;
+        this.inner = inner;
+    }
+
+    static Packet event(Command cmd, String... fields) {
+        return new Packet(cmd, fields, null, null);
+    }
+
+    /**
+     * A newer state of the same round replaces this one if it hasn't been sent yet. The
+     * last state of a round, the one that tells how it ended, is never replaced by the
+     * first one of the next round.
+     * */
+    static Packet state(DTO dto) {
+        return new Packet(Command.STATE, null, dto, dto.getRound());
+    }
+
+    /**
+     * The reply to a TAGGED request, it is never conflated. The packet it wraps is encoded
+     * once however many times it is sent, tagged or not.
+     * */
+    static Packet tagged(int sequence, Packet packet) {
+        return new Packet(Command.TAGGED, sequence, packet, null);
+    }
+
+    /**
+     * A packet for one session of a multiplexed connection. A STATE is conflated with the
+     * previous STATE of the same round in the same session, identified by the given key,
+     * never with the STATEs of other sessions on the connection.
+     * */
+    static Packet session(int session, Packet packet, Object sessionKey) {
+        Object round = packet.getConflationKey();
+        return new Packet(Command.SESSION, session, packet, round == null ? null : new SessionRound(sessionKey, round));
+    }
+
+    Command getCommand() {
+        return cmd;
+    }
+
+    /**
+     * @return the version of the game the state was taken at, see DTO.getVersion().
+     * */
+    long getVersion() {
+        return inner != null ? inner.getVersion() : state.getVersion();
+    }
+
+    /**
+     * @return the round this is a state of, or null if the packet is an event that must
+     * always be delivered.
+     * */
+    Object getConflationKey() {
+        return conflationKey;
+    }
+
+    /**
+     * @return a buffer of its own, positioned at the start of the encoded message.
+     * */
+    ByteBuffer encode(WireFormat format) {
+        if (format == WireFormat.BINARY) {
+            ByteBuffer encoded = binary;
+            if (encoded == null) {
+                // Racing threads may both encode, they produce the same bytes
+                encoded = (inner != null ? encodeBinaryWrapped() : state == null ? BinaryProtocol.frame(cmd, fields)
+                        : encodeBinaryState()).asReadOnlyBuffer();
+                binary = encoded;
+            }
+            return encoded.duplicate();
+        }
+        ByteBuffer encoded = text;
+        if (encoded == null) {
+            encoded = (inner != null ? encodeTextWrapped() : state == null
+                    ? ByteBuffer.wrap(encodeText().getBytes(StandardCharsets.UTF_8)) : encodeTextState()).asReadOnlyBuffer();
+            text = encoded;
+        }
+        return encoded.duplicate();
+    }
+
+    private String encodeText() {
+        StringBuilder msg = new StringBuilder(cmd.toString());
+        for (String field : fields) {
+            msg.append(DATA_DELIMITER).append(field);
+        }
+        return msg.append(END_OF_MSG_DELIMITER).toString();
+    }
+
+    /**
+     * Writes the STATE straight from the primitive game state into the scratch buffer of
+     * this thread, the only allocation is the exact copy that is shared by the recipients.
+     * */
+    private ByteBuffer encodeTextState() {
+        ByteBuffer scratch = SCRATCH.get();
+        scratch.clear();
+        putAscii(scratch, Command.STATE.name());
+        scratch.put(DATA_SEPARATOR);
+        for (int i = 0; i < state.getNoLetters(); i++) {
+            if (i > 0) {
+                scratch.put((byte) ' ');
+            }
+            putChar(scratch, state.isRevealed(i) ? state.getLetter(i) : BinaryProtocol.UNKNOWN_LETTER);
+        }
+        scratch.put(DATA_SEPARATOR);
+        putDecimal(scratch, state.getRemainingAttempts());
+        scratch.put(DATA_SEPARATOR);
+        putAscii(scratch, state.gameWon() ? "true" : "false");
+        scratch.put(DATA_SEPARATOR);
+        int guessedMask = state.getGuessedMask();
+        for (int letter = 0; letter < NO_ALPHABET_LETTERS; letter++) {
+            if ((guessedMask & (1 << letter)) != 0) {
+                if ((guessedMask & ((1 << letter) - 1)) != 0) {
+                    scratch.put((byte) ',').put((byte) ' ');
+                }
+                scratch.put((byte) ('A' + letter));
+            }
+        }
+        scratch.put(DATA_SEPARATOR);
+        putDecimal(scratch, state.getNoLetters());
+        scratch.put(END_OF_MSG);
+        return copyOf(scratch);
+    }
+
+    private ByteBuffer encodeBinaryState() {
+        int noLetters = state.getNoLetters();
+        int maskLength = (noLetters + 7) / 8;
+        ByteBuffer scratch = SCRATCH.get();
+        scratch.clear();
+        // The length is written last, once the body is known, at the front of the copy
+        scratch.position(MAX_LENGTH_HEADER);
+        scratch.put(Command.STATE.opcode());
+        BinaryProtocol.putVarint(scratch, noLetters);
+        scratch.put((byte) (state.gameWon() ? 1 : 0));
+        BinaryProtocol.putVarint(scratch, state.getRemainingAttempts());
+        int maskStart = scratch.position();
+        for (int i = 0; i < maskLength; i++) {
+            scratch.put((byte) 0);
+        }
+        for (int i = 0; i < noLetters; i++) {
+            if (state.isRevealed(i)) {
+                scratch.put(maskStart + (i >> 3), (byte) (scratch.get(maskStart + (i >> 3)) | (1 << (i & 7))));
+                BinaryProtocol.putVarint(scratch, state.getLetter(i));
+            }
+        }
+        scratch.putInt(state.getGuessedMask());
+
+        int bodyLength = scratch.position() - MAX_LENGTH_HEADER;
+        ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.varintSize(bodyLength) + bodyLength);
+        BinaryProtocol.putVarint(frame, bodyLength);
+        scratch.flip().position(MAX_LENGTH_HEADER);
+        return frame.put(scratch).flip();
+    }
+
+    private ByteBuffer encodeTextWrapped() {
+        ByteBuffer wrapped = inner.encode(WireFormat.TEXT);
+        ByteBuffer scratch = SCRATCH.get();
+        scratch.clear();
+        putAscii(scratch, cmd.name());
+        scratch.put(DATA_SEPARATOR);
+        putDecimal(scratch, number);
+        scratch.put(DATA_SEPARATOR);
+        scratch.flip();
+        return ByteBuffer.allocate(scratch.remaining() + wrapped.remaining()).put(scratch).put(wrapped).flip();
+    }
+
+    private ByteBuffer encodeBinaryWrapped() {
+        ByteBuffer wrapped = inner.encode(WireFormat.BINARY);
+        // Skips the length of the wrapped frame
+        while ((wrapped.get() & 0x80) != 0) {
+        }
+        int bodyLength = 1 + BinaryProtocol.varintSize(number) + wrapped.remaining();
+        ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.varintSize(bodyLength) + bodyLength);
+        BinaryProtocol.putVarint(frame, bodyLength);
+        frame.put(cmd.opcode());
+        BinaryProtocol.putVarint(frame, number);
+        return frame.put(wrapped).flip();
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer scratch) {
+        scratch.flip();
+        return ByteBuffer.allocate(scratch.remaining()).put(scratch).flip();
+    }
+
+    private static void putAscii(ByteBuffer buffer, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            buffer.put((byte) ascii.charAt(i));
+        }
+    }
+
+    private static void putDecimal(ByteBuffer buffer, int value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    /**
+     * Puts a char as UTF-8, words are almost always plain ASCII.
+     * */
+    private static void putChar(ByteBuffer buffer, char c) {
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            buffer.put((byte) (0xC0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        } else {
+            buffer.put((byte) (0xE0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+    }
+
+    /**
+     * The conflation key of a session's STATE, the session and the round together.
+     * */
+    private static class SessionRound {
+        private final Object session;
+        private final Object round;
+
+        SessionRound(Object session, Object round) {
+            this.session = session;
+            this.round = round;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof SessionRound)) {
+                return false;
+            }
+            SessionRound that = (SessionRound) other;
+            return session == that.session && round == that.round;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(session) + System.identityHashCode(round);
+        }
+    }
+}
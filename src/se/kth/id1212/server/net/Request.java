@@ -0,0 +1,71 @@
+package se.kth.id1212.server.net;
+
+import common.BinaryProtocol;
+import common.Command;
+
+/**
+ * A decoded message from a client: the command and its arguments, uppercased. The first
+ * argument is the literal. The command is null if the client sent something unknown.
+ * A request the client sent TAGGED carries the sequence number its reply is tagged with.
+ * One sent in a SESSION frame belongs to that session of the connection.
+ * */
+class Request {
+    private static final String[] NO_ARGUMENTS = new String[0];
+    static final int UNTAGGED = BinaryProtocol.UNTAGGED;
+    private final Command cmd;
+    private final String[] arguments;
+    private final int sequence;
+    private final int session;
+    private final long receivedNanos = System.nanoTime();
+
+    Request(Command cmd, String[] arguments, int sequence, int session) {
+        this.cmd = cmd;
+        this.arguments = arguments == null ? NO_ARGUMENTS : arguments;
+        this.sequence = sequence;
+        this.session = session;
+    }
+
+    /**
+     * @return the same request, received now.
+     * */
+    Request repost() {
+        return new Request(cmd, arguments, sequence, session);
+    }
+
+    boolean isTagged() {
+        return sequence != UNTAGGED;
+    }
+
+    int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the session of the connection, BinaryProtocol.NO_SESSION for the connection's own.
+     * */
+    int getSession() {
+        return session;
+    }
+
+    /**
+     * @return System.nanoTime() when the request was decoded.
+     * */
+    long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    Command getCommand() {
+        return cmd;
+    }
+
+    /**
+     * @return the first argument, or null if there is none.
+     * */
+    String getLiteral() {
+        return arguments.length == 0 ? null : arguments[0];
+    }
+
+    String[] getArguments() {
+        return arguments;
+    }
+}
@@ -0,0 +1,134 @@
+package se.kth.id1212.server.net;
+
+import se.kth.id1212.server.model.DTO;
+import se.kth.id1212.server.model.Game;
+import se.kth.id1212.server.model.WordConstraints;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A named game session. Every room owns its own game, so clients in different rooms
+ * never share a word or an attempt counter. Guesses go straight to the lock-free game. The
+ * room also knows its members, so reaching the players of a game never scans all clients.
+ * */
+class Room {
+    private final String id;
+    private final Game game = new Game();
+    private final AtomicBoolean gameRunning = new AtomicBoolean(false);
+    private final AtomicReference<Packet> stateSnapshot = new AtomicReference<>();
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+    private final boolean permanent;
+    // Guarded by the room's lock, a closed room takes no more members
+    private boolean closed;
+
+    /**
+     * @param permanent true if the room stays open when it is empty, like the lobby.
+     * */
+    Room(String id, boolean permanent) {
+        this.id = id;
+        this.permanent = permanent;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    /**
+     * @return false if the room was closed, then the member must join a new one.
+     * */
+    synchronized boolean join(ClientHandler member) {
+        if (closed) {
+            return false;
+        }
+        members.add(member);
+        return true;
+    }
+
+    /**
+     * @return true if the member was the last one and the room closed.
+     * */
+    synchronized boolean leave(ClientHandler member) {
+        members.remove(member);
+        if (!permanent && members.isEmpty()) {
+            closed = true;
+        }
+        return closed;
+    }
+
+    /**
+     * @return the clients in the room, safe to iterate from any thread while they come and go.
+     * */
+    Set<ClientHandler> getMembers() {
+        return members;
+    }
+
+    /**
+     * Checks and starts in one step, so of two concurrent STARTs only one wins.
+     * @return false if a game was already running, then nothing was started.
+     * */
+    boolean startGame(WordConstraints constraints) throws Exception {
+        if (!gameRunning.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            game.start(constraints);
+        } catch (Exception e) {
+            gameRunning.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * @return the state right after the guess.
+     * */
+    DTO guess(String lit) {
+        return game.makeGuess(lit);
+    }
+
+    /**
+     * @return true if this call stopped the game, false if it was already stopped.
+     * */
+    boolean stopGame() {
+        return gameRunning.compareAndSet(true, false);
+    }
+
+    boolean isGameRunning() {
+        return gameRunning.get();
+    }
+
+    /**
+     * @return the STATE of the game, shared by every caller until the game changes. A
+     * packet encodes each format once, so all handlers share the same bytes too.
+     * */
+    Packet getStatePacket() {
+        Packet snapshot = stateSnapshot.get();
+        if (snapshot != null && snapshot.getVersion() == game.getVersion()) {
+            return snapshot;
+        }
+        return publishState(Packet.state(game.getDTO()));
+    }
+
+    /**
+     * Caches a STATE encoded elsewhere, like the one a guess broadcasts, so the next
+     * getStatePacket() of that version reuses it instead of encoding it again.
+     * @return the packet.
+     * */
+    Packet publishState(Packet fresh) {
+        Packet snapshot = stateSnapshot.get();
+        // Only ever replace an older snapshot, a slow thread must not put back a stale one
+        while (snapshot == null || snapshot.getVersion() < fresh.getVersion()) {
+            if (stateSnapshot.compareAndSet(snapshot, fresh)) {
+                break;
+            }
+            snapshot = stateSnapshot.get();
+        }
+        return fresh;
+    }
+
+    String getRules() {
+        return game.getRules();
+    }
+}
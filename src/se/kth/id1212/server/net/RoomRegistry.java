@@ -0,0 +1,47 @@
+package se.kth.id1212.server.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of all rooms on the server, keyed by room ID.
+ * Rooms are created the first time someone joins them, and dropped when the last member
+ * leaves, all but the lobby. So clients can't fill the server with rooms nobody is in.
+ * */
+class RoomRegistry {
+    static final String LOBBY = "LOBBY";
+    static final int MAX_ID_LENGTH = 64;
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    Room lobby() {
+        return rooms.computeIfAbsent(LOBBY, id -> new Room(id, true));
+    }
+
+    /**
+     * @return the room the member joined, created if there was none.
+     * @throws IllegalArgumentException if the ID is longer than MAX_ID_LENGTH.
+     * */
+    Room join(String id, ClientHandler member) {
+        if (id.length() > MAX_ID_LENGTH) {
+            throw new IllegalArgumentException("Room names are at most " + MAX_ID_LENGTH + " letters");
+        }
+        while (true) {
+            Room room = id.equals(LOBBY) ? lobby() : rooms.computeIfAbsent(id, created -> new Room(created, false));
+            if (room.join(member)) {
+                return room;
+            }
+            // Emptied and closed meanwhile, a new room takes its place
+            rooms.remove(id, room);
+        }
+    }
+
+    void leave(Room room, ClientHandler member) {
+        if (room.leave(member)) {
+            rooms.remove(room.getId(), room);
+        }
+    }
+
+    int size() {
+        return rooms.size();
+    }
+}
@@ -1,55 +1,58 @@
 package se.kth.id1212.server.net;
 
-import se.kth.id1212.server.model.DTO;
-import se.kth.id1212.server.model.Game;
+import common.BinaryProtocol;
+import common.WireFormat;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Queue;
-
-public class Server {
-    private int portNo = 9091;
-    private Selector selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Server extends GameServer {
+    private static final int DEFAULT_PORT = 9091;
+    private int portNo = DEFAULT_PORT;
     private ServerSocketChannel listeningSocketChannel;
-    private final Queue<ByteBuffer> packetsToBroadcast = new ArrayDeque<>();
-    private boolean broadcastTime = false;
-    private GameInterface gameInterface = new GameInterface();
-
-    private Server() {}
-
+    private int noReactors = Runtime.getRuntime().availableProcessors();
+    private Reactor[] reactors;
+    private int nextReactor = 0;
+    private int highWatermark = 256 * 1024;
+    private int lowWatermark = 64 * 1024;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+    private int noCommandWorkers = Runtime.getRuntime().availableProcessors();
+    private ExecutorService commandExecutor;
+
+    Server() {}
+
+    /**
+     * Binds the port, starts the worker reactors and then spends the life of the main thread
+     * accepting connections, handing each of them to one of the reactors in round robin order.
+     * The port is bound first, so a server that can't listen doesn't leave reactors running.
+     * */
     private void serve() {
         try {
-            initSelector();
             initListeningSocketChannel();
+            getStats().register();
+            startCommandWorkers();
+            startReactors();
 
             while (true) {
-                if (broadcastTime) {
-                    setWriteInterestForAllClients();
-                    appendBroadcastMsgToAllClientQueues();
-                    broadcastTime = false;
-                }
-                selector.select();
-                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-                while (iterator.hasNext()) {
-                    SelectionKey key = iterator.next();
-                    iterator.remove();
-                    if (!key.isValid()) {
-                        continue;
-                    }
-                    if (key.isAcceptable()) {
-                        startHandler(key);
-                    } else if (key.isReadable()) {
-                        receiveFromClient(key);
-                    } else if (key.isWritable()) {
-                        transmitToClient(key);
-                    }
-                }
+                SocketChannel clientChannel = listeningSocketChannel.accept();
+                clientChannel.configureBlocking(false);
+                nextReactor().register(clientChannel);
             }
         } catch (IOException e) {
             System.out.println("Server-exception");
@@ -57,195 +60,407 @@ public class Server {
         }
     }
 
-    private void initSelector() throws IOException {
-        selector = Selector.open();
+    /**
+     * Client commands run on their own pool, so they don't compete with other users of the
+     * common pool. Each client's commands are serialized by the Mailbox of its handler.
+     * */
+    private void startCommandWorkers() {
+        AtomicInteger threadNo = new AtomicInteger();
+        commandExecutor = Executors.newFixedThreadPool(noCommandWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "command-worker-" + threadNo.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    Executor getCommandExecutor() {
+        return commandExecutor;
+    }
+
+    private void startReactors() throws IOException {
+        reactors = new Reactor[noReactors];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+            Thread thread = new Thread(reactors[i], "reactor-" + i);
+            thread.start();
+        }
     }
 
     private void initListeningSocketChannel() throws IOException {
         listeningSocketChannel = ServerSocketChannel.open();
-        listeningSocketChannel.configureBlocking(false);
         listeningSocketChannel.bind(new InetSocketAddress(portNo));
-        listeningSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
     }
 
-    private void startHandler(SelectionKey key) throws IOException {
-        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-        SocketChannel clientChannel = serverSocketChannel.accept();
-        clientChannel.configureBlocking(false);
-        ClientHandler handler = new ClientHandler(this, clientChannel);
-        clientChannel.register(selector, SelectionKey.OP_WRITE, new ClientInterface(handler));
+    private Reactor nextReactor() {
+        Reactor reactor = reactors[nextReactor];
+        nextReactor = (nextReactor + 1) % reactors.length;
+        return reactor;
     }
 
-    private void setWriteInterestForAllClients() {
-        for (SelectionKey key : selector.keys()) {
-            if (key.channel() instanceof SocketChannel && key.isValid()) {
-                key.interestOps(SelectionKey.OP_WRITE);
-            }
+    /**
+     * A selector loop that owns a share of the client connections. It reads from and writes
+     * to its own clients only, so the reactors never share a selector. Broadcasts are queued
+     * by whichever thread sends them, straight to the members of the room.
+     * */
+    private class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> channelsToRegister = new ConcurrentLinkedQueue<>();
+
+        Reactor() throws IOException {
+            selector = Selector.open();
         }
-    }
 
-    private void appendBroadcastMsgToAllClientQueues() {
-        synchronized (packetsToBroadcast) {
-            ByteBuffer msg;
-            while ((msg = packetsToBroadcast.poll()) != null) {
-                for (SelectionKey key : selector.keys()) {
-                    ClientInterface client = (ClientInterface) key.attachment();
-                    if (client == null) {
-                        continue;
-                    }
-                    synchronized (client.messagesToTransmit) {
-                        client.queueOutgoingMsg(msg);
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    registerNewClients();
+                    selector.select();
+                    long loopStart = System.nanoTime();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                receiveFromClient(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                transmitToClient(key);
+                            }
+                        } catch (CancelledKeyException e) {
+                            // Closed by a command worker meanwhile, the client is already disconnected
+                        } catch (RuntimeException e) {
+                            // Only this client is lost, the reactor carries on with the others
+                            e.printStackTrace();
+                            ((ClientInterface) key.attachment()).handler.disconnect();
+                            key.cancel();
+                        }
                     }
+                    getStats().recordSelectorLoop(System.nanoTime() - loopStart);
                 }
+            } catch (IOException e) {
+                System.out.println("Reactor-exception");
+                e.printStackTrace();
             }
         }
-    }
 
-    private void transmitToClient(SelectionKey key) {
-        ClientInterface client = (ClientInterface) key.attachment();
-        try {
-            client.transmitAll();
-            key.interestOps(SelectionKey.OP_READ);
-        } catch (IOException e) {
-            e.printStackTrace();
+        private void register(SocketChannel clientChannel) {
+            channelsToRegister.add(clientChannel);
+            selector.wakeup();
         }
-    }
 
-    private void receiveFromClient(SelectionKey key) {
-        ClientInterface client = (ClientInterface) key.attachment();
-        try {
-            client.handler.receiveMessage();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    void broadcast(String msg) {
-        broadcastTime = true;
-        ByteBuffer message = ByteBuffer.wrap(msg.getBytes());
-        synchronized (packetsToBroadcast) {
-            packetsToBroadcast.add(message);
+        private void registerNewClients() throws IOException {
+            SocketChannel clientChannel;
+            while ((clientChannel = channelsToRegister.poll()) != null) {
+                ClientInterface client = new ClientInterface(clientChannel);
+                client.attach(clientChannel.register(selector, SelectionKey.OP_READ, client));
+            }
         }
-        selector.wakeup();
-    }
 
-    void decrementAllClientsScore() {
-        gameInterface.stopGame();
-        for (SelectionKey key : selector.keys()) {
-            if (key.channel() instanceof SocketChannel && key.isValid()) {
-                ClientInterface client = (ClientInterface) key.attachment();
-                client.decrementScore();
+        private void transmitToClient(SelectionKey key) {
+            ClientInterface client = (ClientInterface) key.attachment();
+            try {
+                client.transmitAll();
+            } catch (IOException e) {
+                e.printStackTrace();
+                client.handler.disconnect();
+                key.cancel();
             }
         }
-    }
 
-    void incrementAllClientsScore() {
-        gameInterface.stopGame();
-        for (SelectionKey key : selector.keys()) {
-            if (key.channel() instanceof SocketChannel && key.isValid()) {
-                ClientInterface client = (ClientInterface) key.attachment();
-                client.incrementScore();
+        private void receiveFromClient(SelectionKey key) {
+            ClientInterface client = (ClientInterface) key.attachment();
+            try {
+                client.handler.receiveMessage();
+            } catch (IOException e) {
+                // The client is gone or sent a malformed frame, either way the stream is unusable
+                e.printStackTrace();
+                client.handler.disconnect();
+                key.cancel();
             }
         }
     }
 
-    private class ClientInterface {
+    /**
+     * The outgoing side of one client. Write interest is only set while the queue holds
+     * something, and the queue is flushed with gathering writes, many messages per call.
+     * The queue is bounded by the watermarks, see SlowConsumerPolicy. A STATE that hasn't
+     * started to go out is replaced by a newer STATE with the same conflation key, that is
+     * of the same round and session, and never by an older one. Events are never replaced,
+     * so a client that falls behind only gets the newest state of each round it follows.
+     * */
+    class ClientInterface implements Outbound {
+        private static final int MAX_BUFFERS_PER_WRITE = 64;
         private final ClientHandler handler;
         private final Queue<ByteBuffer> messagesToTransmit = new ArrayDeque<>();
-
-        ClientInterface(ClientHandler handler) {
-            this.handler = handler;
+        private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
+        private long queuedBytes = 0;
+        private boolean slow = false;
+        private boolean readsPaused = false;
+        private boolean closed = false;
+        // The last STATE queued per conflation key, until the queue has been emptied
+        private final Map<Object, PendingState> pendingStates = new HashMap<>();
+        private WireFormat format = WireFormat.TEXT;
+        private volatile SelectionKey key;
+
+        ClientInterface(SocketChannel clientChannel) {
+            this.handler = new ClientHandler(Server.this, clientChannel, this);
         }
 
-        private void queueOutgoingMsg(ByteBuffer msg) {
+        private void queueOutgoingMsg(Packet msg) {
             synchronized (messagesToTransmit) {
-                messagesToTransmit.add(msg.duplicate());
+                ByteBuffer encoded = msg.encode(format);
+                Object conflationKey = msg.getConflationKey();
+                if (conflationKey == null) {
+                    queue(encoded);
+                    return;
+                }
+                PendingState last = pendingStates.get(conflationKey);
+                if (last != null && last.version > msg.getVersion()) {
+                    // Read before a newer one was queued, like a RUNNING reply racing a guess
+                    return;
+                }
+                ByteBuffer pending = last == null ? null : last.encoded;
+                boolean replaces = pending != null && pending.position() == 0;
+                // Admitted first, so a rejected STATE leaves the one it would replace in place
+                if (!admit(encoded.remaining() - (replaces ? pending.remaining() : 0))) {
+                    return;
+                }
+                if (replaces) {
+                    // Emptied rather than removed, transmitAll discards it when it reaches the head
+                    queuedBytes -= pending.remaining();
+                    getStats().queued(0, -pending.remaining());
+                    pending.limit(0);
+                }
+                append(encoded);
+                pendingStates.put(conflationKey, new PendingState(encoded, msg.getVersion()));
             }
         }
 
-        private void transmitAll() throws IOException {
-            ByteBuffer msg = null;
-            synchronized (messagesToTransmit) {
-                while ((msg = messagesToTransmit.peek()) != null) {
-                    handler.transmitToClient(msg);
-                    // If an exception is thrown then we retreat without removing message.
-                    messagesToTransmit.remove();
-                }
+        /**
+         * Must hold the lock of messagesToTransmit
+         * @return true if the message was queued.
+         * */
+        private boolean queue(ByteBuffer msg) {
+            if (!admit(msg.remaining())) {
+                return false;
             }
+            append(msg);
+            return true;
         }
 
-        private void incrementScore() {
-            handler.incrementScore();
+        /**
+         * Applies the slow consumer policy to a message of the given size, which may be
+         * negative for a STATE that replaces a bigger one. Must hold the lock of
+         * messagesToTransmit
+         * @return true if the message may be queued.
+         * */
+        private boolean admit(long bytes) {
+            if (closed) {
+                return false;
+            }
+            if (!slow && queuedBytes + bytes > highWatermark) {
+                slow = true;
+                if (slowConsumerPolicy == SlowConsumerPolicy.DISCONNECT) {
+                    disconnectSlowClient();
+                    return false;
+                }
+                readsPaused = slowConsumerPolicy == SlowConsumerPolicy.PAUSE_READS;
+            }
+            return !slow || (slowConsumerPolicy != SlowConsumerPolicy.DROP &&
+                    queuedBytes + bytes <= 2L * highWatermark);
         }
 
-        private void decrementScore() {
-            handler.decrementScore();
+        // Must hold the lock of messagesToTransmit
+        private void append(ByteBuffer msg) {
+            messagesToTransmit.add(msg);
+            queuedBytes += msg.remaining();
+            getStats().queued(1, msg.remaining());
+            updateInterestOps();
         }
-    }
 
-    /*
-     * Game related operations
-     * */
-
-    void startGame() throws Exception {
-        if (!gameInterface.isGameRunning()) {
-            gameInterface.start();
-        } else {
-            throw new Exception("A game is already running");
+        // Must hold the lock of messagesToTransmit
+        private void disconnectSlowClient() {
+            System.out.println("Disconnecting slow client");
+            handler.disconnect();
         }
-    }
-
-    void guess(String lit) {
-        gameInterface.guess(lit);
-    }
-
-    private void stopGame() {
-        gameInterface.stopGame();
-    }
-
-    boolean isGameRunning() {
-        return gameInterface.isGameRunning();
-    }
 
-    DTO getGameStateDTO() {
-        return gameInterface.getGameStateDTO();
-    }
-
-    String getRules() {
-        return gameInterface.getRules();
-    }
+        /**
+         * The client is in the lobby, and may have been sent something, before it has a key.
+         * */
+        private void attach(SelectionKey key) {
+            synchronized (messagesToTransmit) {
+                this.key = key;
+                if (closed) {
+                    key.cancel();
+                    return;
+                }
+                updateInterestOps();
+            }
+        }
 
-    private class GameInterface {
-        private Game game = new Game();
-        private boolean gameRunning = false;
+        @Override
+        public void close() {
+            synchronized (messagesToTransmit) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                getStats().queued(-messagesToTransmit.size(), -queuedBytes);
+                messagesToTransmit.clear();
+                pendingStates.clear();
+                queuedBytes = 0;
+                SelectionKey key = this.key;
+                if (key != null) {
+                    key.cancel();
+                }
+            }
+        }
 
-        private void start() throws Exception {
-            game.start();
-            gameRunning = true;
+        @Override
+        public void send(Packet packet) {
+            queueOutgoingMsg(packet);
+            wakeup();
         }
 
-        private void guess(String lit) {
-            game.makeGuess(lit);
+        @Override
+        public void useFormat(WireFormat format) {
+            synchronized (messagesToTransmit) {
+                if (format == WireFormat.BINARY && this.format != WireFormat.BINARY) {
+                    queue(BinaryProtocol.handshake());
+                }
+                this.format = format;
+            }
+            wakeup();
         }
 
-        private void stopGame() {
-            gameRunning = false;
+        // Must hold the lock of messagesToTransmit
+        private void updateInterestOps() {
+            SelectionKey key = this.key;
+            if (key != null && key.isValid()) {
+                int ops = readsPaused ? 0 : SelectionKey.OP_READ;
+                if (!messagesToTransmit.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                try {
+                    key.interestOps(ops);
+                } catch (CancelledKeyException e) {
+                    // Closed meanwhile, must not abort a broadcast to the other members
+                }
+            }
         }
 
-        boolean isGameRunning() {
-            return gameRunning;
+        private void wakeup() {
+            SelectionKey key = this.key;
+            if (key != null) {
+                key.selector().wakeup();
+            }
         }
 
-        private DTO getGameStateDTO() {
-            return game.getDTO();
+        /**
+         * Writes as much of the queue as the socket accepts. Whatever is left, including a
+         * partially written message, stays queued until the socket is writable again.
+         * */
+        void transmitAll() throws IOException {
+            synchronized (messagesToTransmit) {
+                boolean socketFull = false;
+                while (!messagesToTransmit.isEmpty() && !socketFull) {
+                    int batchSize = 0;
+                    for (ByteBuffer msg : messagesToTransmit) {
+                        if (batchSize == MAX_BUFFERS_PER_WRITE) {
+                            break;
+                        }
+                        writeBatch[batchSize++] = msg;
+                    }
+                    long written = handler.transmitToClient(writeBatch, batchSize);
+                    queuedBytes -= written;
+                    getStats().queued(0, -written);
+                    for (int i = 0; i < batchSize; i++) {
+                        if (writeBatch[i].hasRemaining()) {
+                            socketFull = true;
+                            break;
+                        }
+                        messagesToTransmit.remove();
+                        getStats().queued(-1, 0);
+                    }
+                    Arrays.fill(writeBatch, 0, batchSize, null);
+                }
+                if (messagesToTransmit.isEmpty()) {
+                    // All sent, so nothing is left to replace
+                    pendingStates.clear();
+                }
+                if (slow && queuedBytes <= lowWatermark) {
+                    slow = false;
+                    readsPaused = false;
+                }
+                updateInterestOps();
+            }
         }
+    }
+
+    private static class PendingState {
+        private final ByteBuffer encoded;
+        private final long version;
 
-        private String getRules() {
-            return game.getRules();
+        PendingState(ByteBuffer encoded, long version) {
+            this.encoded = encoded;
+            this.version = version;
         }
     }
 
+    /**
+     * Usage: Server [--engine SELECTOR|THREADS] [--reactors N] [--command-workers N]
+     *               [--high-watermark BYTES] [--low-watermark BYTES]
+     *               [--slow-consumer DISCONNECT|DROP|PAUSE_READS]
+     * The number of reactors and command workers defaults to the number of available cores.
+     * The THREADS engine runs each client on its own threads, see BlockingServer, and
+     * ignores the other options.
+     * */
     public static void main(String[] args) {
-        new Server().serve();
+        if (isThreadEngine(args)) {
+            // Only the engine that serves is built, so JMX shows its stats and no idle ones
+            new BlockingServer(DEFAULT_PORT).serve();
+            return;
+        }
+        Server server = new Server();
+        for (int i = 0; i < args.length - 1; i += 2) {
+            switch (args[i]) {
+                case "--engine":
+                    break;
+                case "--reactors":
+                    server.noReactors = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "--command-workers":
+                    server.noCommandWorkers = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "--high-watermark":
+                    server.highWatermark = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--low-watermark":
+                    server.lowWatermark = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--slow-consumer":
+                    server.slowConsumerPolicy = SlowConsumerPolicy.valueOf(args[i + 1].toUpperCase());
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+            }
+        }
+        server.lowWatermark = Math.min(server.lowWatermark, server.highWatermark);
+        server.serve();
+    }
+
+    private static boolean isThreadEngine(String[] args) {
+        for (int i = 0; i < args.length - 1; i += 2) {
+            if (args[i].equals("--engine") && args[i + 1].equalsIgnoreCase("THREADS")) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -0,0 +1,162 @@
+package se.kth.id1212.server.net;
+
+import common.Command;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * The metrics of one server. Every counter is a LongAdder, so the threads that record never
+ * contend or take locks, and reading sums them up. Shown over JMX and by the STATS command,
+ * which is only open to the players listed in the system property hangman.admins, comma
+ * separated, and closed to everyone if it isn't set. Players pick their own names, so this
+ * keeps the stats out of sight rather than authenticating anyone, JMX is the secure way.
+ * */
+class ServerStats implements ServerStatsMBean {
+    static final String ADMINS_PROPERTY = "hangman.admins";
+    private static final String OBJECT_NAME = "se.kth.id1212.server:type=ServerStats";
+    private final Map<Command, LatencyHistogram> commandLatencies = new EnumMap<>(Command.class);
+    private final LatencyHistogram selectorLoop = new LatencyHistogram();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder queuedMessages = new LongAdder();
+    private final LongAdder queuedBytes = new LongAdder();
+    private final Set<String> admins = new HashSet<>();
+
+    ServerStats() {
+        // Filled once, so it is only read afterwards and needs no locking
+        for (Command cmd : Command.values()) {
+            commandLatencies.put(cmd, new LatencyHistogram());
+        }
+        String adminList = System.getProperty(ADMINS_PROPERTY);
+        if (adminList != null) {
+            for (String admin : adminList.split(",")) {
+                admins.add(admin.trim().toUpperCase());
+            }
+        }
+    }
+
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, ServerStatsMBean.class), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.out.println("Could not register the server stats with JMX: " + e.getMessage());
+        }
+    }
+
+    boolean isAdmin(String player) {
+        return admins.contains(player);
+    }
+
+    void recordCommand(Command cmd, long nanos) {
+        commandLatencies.get(cmd).record(nanos);
+    }
+
+    void recordSelectorLoop(long nanos) {
+        selectorLoop.record(nanos);
+    }
+
+    void connectionOpened() {
+        connections.increment();
+    }
+
+    void connectionClosed() {
+        connections.decrement();
+    }
+
+    void received(long bytes, int frames) {
+        bytesIn.add(bytes);
+        framesIn.add(frames);
+    }
+
+    void transmitted(long bytes, int frames) {
+        bytesOut.add(bytes);
+        framesOut.add(frames);
+    }
+
+    /**
+     * Tracks the depth of the client output queues, negative when messages leave.
+     * */
+    void queued(int messages, long bytes) {
+        queuedMessages.add(messages);
+        queuedBytes.add(bytes);
+    }
+
+    @Override
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        return queuedMessages.sum();
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return queuedBytes.sum();
+    }
+
+    @Override
+    public String getSelectorLoop() {
+        return selectorLoop.summary();
+    }
+
+    @Override
+    public String[] getCommandLatencies() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Command, LatencyHistogram> entry : commandLatencies.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                lines.add(entry.getKey() + " " + entry.getValue().summary());
+            }
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    /**
+     * @return the lines of the STATS reply.
+     * */
+    String[] report() {
+        List<String> lines = new ArrayList<>(Arrays.asList(
+                "connections=" + getConnections(),
+                "in: bytes=" + getBytesIn() + " frames=" + getFramesIn(),
+                "out: bytes=" + getBytesOut() + " frames=" + getFramesOut(),
+                "queued: messages=" + getQueuedMessages() + " bytes=" + getQueuedBytes(),
+                "selector loop " + getSelectorLoop()));
+        lines.addAll(Arrays.asList(getCommandLatencies()));
+        return lines.toArray(new String[0]);
+    }
+}
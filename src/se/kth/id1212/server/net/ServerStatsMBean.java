@@ -0,0 +1,33 @@
+package se.kth.id1212.server.net;
+
+/**
+ * The server's metrics as seen over JMX, under se.kth.id1212.server:type=ServerStats.
+ * */
+public interface ServerStatsMBean {
+    long getConnections();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    /**
+     * @return the messages waiting in all client output queues.
+     * */
+    long getQueuedMessages();
+
+    long getQueuedBytes();
+
+    /**
+     * @return how long one selector loop takes, not counting the wait in select().
+     * */
+    String getSelectorLoop();
+
+    /**
+     * @return one line per command: the time from decoding it to having processed it.
+     * */
+    String[] getCommandLatencies();
+}
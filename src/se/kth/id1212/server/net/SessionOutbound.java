@@ -0,0 +1,32 @@
+package se.kth.id1212.server.net;
+
+import common.WireFormat;
+
+/**
+ * The way out to one session of a multiplexed connection. Its packets are wrapped with the
+ * session id and queued on the Outbound of the connection, in the connection's format.
+ * */
+class SessionOutbound implements Outbound {
+    private final Outbound connection;
+    private final int session;
+
+    SessionOutbound(Outbound connection, int session) {
+        this.connection = connection;
+        this.session = session;
+    }
+
+    @Override
+    public void send(Packet packet) {
+        connection.send(Packet.session(session, packet, this));
+    }
+
+    @Override
+    public void useFormat(WireFormat format) {
+        // The connection negotiates the format for all of its sessions
+    }
+
+    @Override
+    public void close() {
+        // The connection stays open for its other sessions
+    }
+}
@@ -0,0 +1,15 @@
+package se.kth.id1212.server.net;
+
+/**
+ * What to do with a client whose outgoing queue has grown past the high watermark.
+ * The client counts as slow until the queue has drained below the low watermark.
+ * */
+enum SlowConsumerPolicy {
+    /** Closes the connection. */
+    DISCONNECT,
+    /** Drops new messages to the client until it has caught up. */
+    DROP,
+    /** Stops reading requests from the client until it has caught up. Messages to it are
+     * still queued, up to twice the high watermark, and dropped after that. */
+    PAUSE_READS
+}